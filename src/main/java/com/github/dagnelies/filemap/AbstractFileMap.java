@@ -1,11 +1,34 @@
 package com.github.dagnelies.filemap;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -22,18 +45,90 @@ public abstract class AbstractFileMap<K,V>  implements FileMap<K,V> {
 	protected File file;
 	protected BufferedRandomAccessFile fileio;
 	
+	// when the file is shared by several maps, their store and the name tagging this map's lines
+	private FileMapStore store;
+	private String name;
+	
 	private static final String MODE = "rw";
 	private long entriesWritten;
 	
+	static final int DEFAULT_LARGE_VALUE_THRESHOLD = 64 * 1024;
+	private int largeValueThreshold = DEFAULT_LARGE_VALUE_THRESHOLD;
+	
+	// incremented each time the file content is discarded, invalidating previously read offsets
+	protected long generation;
+	
 	Class<K> keyType;
 	Class<V> valueType;
 	
 	static ObjectMapper mapper = new ObjectMapper();
 	
+	// expired entries are swept every second, and write-behind buffers flushed, by a single thread shared by all maps
+	private static final long SWEEP_INTERVAL_MS = 1000;
+	private static final int WHEEL_SIZE = 512;
+	private static ScheduledExecutorService scheduler;
+	
+	// the expiration time of the keys having a TTL, the other keys are not in there
+	private Map<K,Long> expirations = new HashMap<>();
+	private TimerWheel<K> wheel;
+	private ScheduledFuture<?> sweeping;
+	
+	private Map<String, SecondaryIndex<K,V>> indexes = new HashMap<>();
+	
+	// the offset returned by writeLine() when the line is held by the write-behind buffer
+	protected static final long PENDING = -1;
+	
+	// when writing behind: the latest write of each key not yet appended to the file, in order, or null otherwise
+	private LinkedHashMap<K, PendingWrite<V>> pending;
+	private int maxPending;
+	private ScheduledFuture<?> flushing;
+	
+	private static class PendingWrite<V> {
+		final V value;
+		final Metadata meta;
+		
+		PendingWrite(V value, Metadata meta) {
+			this.value = value;
+			this.meta = meta;
+		}
+	}
+	
+	
+	// while loading in the background, the lock is released after each batch of lines so that other threads can write
+	private static final int LOAD_BATCH_SIZE = 1000;
+	// the pause between batches, long enough for a waiting writer to take the lock
+	private static final long LOAD_PAUSE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	
+	private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+	// the keys written while loading in the background, whose older lines must then be ignored
+	private Set<Object> writtenWhileLoading;
 	
 	
 	public AbstractFileMap(File file, Class<K> keyType, Class<V> valueType) throws IOException {
+		this(file, keyType, valueType, false);
+	}
+	
+	/**
+	 * @param loadInBackground if true, the constructor returns immediately and the file is loaded by a background thread.
+	 * Meanwhile, writes are accepted right away while reads wait until the loading completes, see whenLoaded().
+	 * Since writes do not wait, put() and remove() return null instead of the previous value
+	 * until the file is loaded, unless the key was already written since the map was opened.
+	 */
+	public AbstractFileMap(File file, Class<K> keyType, Class<V> valueType, boolean loadInBackground) throws IOException {
+		this(file, null, null, keyType, valueType, loadInBackground);
+	}
+	
+	/**
+	 * Opens the map named so in the store's file. Only the lines tagged with this name are loaded.
+	 */
+	AbstractFileMap(FileMapStore store, String name, Class<K> keyType, Class<V> valueType) throws IOException {
+		this(store.getFile(), store, name, keyType, valueType, false);
+	}
+	
+	private AbstractFileMap(File file, FileMapStore store, String name, Class<K> keyType, Class<V> valueType, boolean loadInBackground) throws IOException {
 		this.file = file;
+		this.store = store;
+		this.name = name;
 		this.keyType = keyType;
 		this.valueType = valueType;
 		init();
@@ -41,27 +136,186 @@ public abstract class AbstractFileMap<K,V>  implements FileMap<K,V> {
 			fileio.close();
 		
 		entriesWritten = 0;
-		fileio = new BufferedRandomAccessFile(file, MODE);
+		fileio = (store == null) ? new BufferedRandomAccessFile(file, MODE) : store.view();
+		
+		long end = fileio.length();
+		beforeLoading(end);
+		fileio.seek(0);
+		if( !loadInBackground ) {
+			loadEntries(end, Long.MAX_VALUE);
+			loaded.complete(null);
+			return;
+		}
 		
-		while(!fileio.isEOF()) {
-			long offset = fileio.pos();			
+		writtenWhileLoading = new HashSet<>();
+		Thread loader = new Thread(() -> loadInBackground(end), "FileMap loader: " + file.getName());
+		loader.setDaemon(true);
+		loader.start();
+	}
+	
+	/**
+	 * Loads the lines from the current position up to the given end, or at most the given amount of lines.
+	 */
+	private void loadEntries(long end, long max) throws IOException {
+		for (long i = 0; i < max && fileio.pos() < end; i++) {
+			long offset = fileio.pos();
 			
-			String line = fileio.readLine();
-			if( line == null ||  line.isEmpty() || line.startsWith("#") )
+			LineEntry entry = readEntry(loadsValues());
+			if( entry == null || !isOwnLine(entry) )
 				continue;
 			
-			loadEntry(offset, line);
+			K key = mapper.readValue(entry.getKeyJson(), keyType);
+			if( writtenWhileLoading == null || !writtenWhileLoading.contains(key) )
+				loadEntry(offset, key, entry);
+			if( fileio.pos() != entry.end )
+				fileio.seek(entry.end);
 			entriesWritten++;
 		}
 	}
 	
+	/**
+	 * Whether the line belongs to this map. When not part of a store, all lines do.
+	 */
+	protected boolean isOwnLine(LineEntry entry) {
+		if( store == null )
+			return true;
+		return entry.meta != null && name.equals(entry.meta.map);
+	}
+	
+	/**
+	 * The name of this map in its store, or null if it is not part of a store.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Loads the lines present when the map was opened, batch by batch.
+	 * Since other threads may use the file in between, the position is restored before each batch.
+	 */
+	private void loadInBackground(long end) {
+		try {
+			long pos = 0;
+			while( true ) {
+				synchronized(this) {
+					if( loaded.isDone() )
+						return; // closed meanwhile
+					fileio.seek(pos);
+					loadEntries(end, LOAD_BATCH_SIZE);
+					pos = fileio.pos();
+					if( pos >= end ) {
+						writtenWhileLoading = null;
+						loaded.complete(null);
+						notifyAll();
+						return;
+					}
+				}
+				// the lock is not fair: without a pause, this thread would take it again before the waiting writers
+				LockSupport.parkNanos(LOAD_PAUSE_NANOS);
+			}
+		}
+		catch(Throwable e) {
+			synchronized(this) {
+				loaded.completeExceptionally(e);
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Returns a future completed once the file is loaded, or completed exceptionally if loading failed.
+	 */
+	public CompletableFuture<Void> whenLoaded() {
+		// a dependent future, so that callers cannot complete it
+		return loaded.thenApply(v -> v);
+	}
+	
+	public boolean isLoaded() {
+		return loaded.isDone() && !loaded.isCompletedExceptionally();
+	}
+	
+	/**
+	 * Waits until the file is loaded. It must be called while holding the map's lock, which is released while waiting.
+	 */
+	protected void awaitLoaded() {
+		if( isLoaded() )
+			return;
+		try {
+			while( !loaded.isDone() )
+				wait();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while loading " + file, e);
+		}
+		try {
+			loaded.join();
+		}
+		catch(CompletionException e) {
+			throw new RuntimeException("Failed to load " + file, e.getCause());
+		}
+	}
+	
+	/**
+	 * Same as awaitLoaded(), except that it does not wait if the key was written since the map was opened,
+	 * since its older lines do not matter anymore.
+	 */
+	protected void awaitLoaded(Object key) {
+		if( writtenWhileLoading != null && writtenWhileLoading.contains(key) )
+			return;
+		awaitLoaded();
+	}
+	
+	/**
+	 * Whether the key's current value is known, that is if the file is loaded or the key was written since the map was opened.
+	 */
+	protected boolean isKnown(Object key) {
+		return writtenWhileLoading == null || writtenWhileLoading.contains(key);
+	}
+	
 	protected long getEntriesWritten() {
 		return entriesWritten;
 	}
 	
 	abstract protected void init() throws IOException;
+	
+	/**
+	 * Called once the file is opened, before its content up to the given end is loaded.
+	 * The file's position can be moved, it is reset afterwards.
+	 */
+	protected void beforeLoading(long end) throws IOException {
+	}
 
-	protected abstract void loadEntry(long offset, String line) throws IOException;
+	/**
+	 * Whether the entries passed to loadEntry() should include the value's JSON.
+	 * Large values are never included, they can be parsed using readValue().
+	 */
+	protected abstract boolean loadsValues();
+	
+	/**
+	 * Called for each line when the file is loaded. Removed and expired entries must be removed from the map.
+	 */
+	protected abstract void loadEntry(long offset, K key, LineEntry entry) throws IOException;
+	
+	/**
+	 * Removes an expired entry from memory. Nothing is written to the file since expired entries are ignored when loaded.
+	 */
+	protected abstract void evict(Object key);
+	
+	/**
+	 * Writes all live entries to the output, as a compact replacement of the current file.
+	 * The positions in the new file must not be used before switchToCompacted() is called,
+	 * since the compaction may still fail and keep the current file.
+	 * 
+	 * @return the number of entries written
+	 */
+	protected abstract long copyLiveEntries(BufferedRandomAccessFile out) throws IOException;
+	
+	/**
+	 * Called once the file written by copyLiveEntries() replaced the current one.
+	 */
+	protected void switchToCompacted() {
+	}
 	
 	public File getFile() {
 		return file;
@@ -69,19 +323,42 @@ public abstract class AbstractFileMap<K,V>  implements FileMap<K,V> {
 	
 	public class LineEntry implements Entry<K, V> {
 
-		String line;
-		int tabPos;
+		String keyJson;
+		Metadata meta;
+		// null if the value was not read
+		String valueJson;
+		boolean removal;
+		// the position of the value in the file and the position after the line, when read from the file
+		long valueOffset;
+		long end;
 		
 		LineEntry(String line) throws IOException {
-			this.line = line;
-			this.tabPos = line.indexOf('\t');
+			int tabPos = line.indexOf('\t');
 			if( tabPos <= 0 ) {
 				throw new IOException("Failed to parse line: " + line);
 			}
+			this.keyJson = line.substring(0, tabPos);
+			int valuePos = tabPos + 1;
+			if( line.startsWith("@", valuePos) ) {
+				int metaEnd = line.indexOf('\t', valuePos);
+				if( metaEnd < 0 ) {
+					throw new IOException("Failed to parse line: " + line);
+				}
+				this.meta = Metadata.parse(line.substring(valuePos + 1, metaEnd));
+				valuePos = metaEnd + 1;
+			}
+			this.valueJson = line.substring(valuePos);
+			this.removal = "null".equals(valueJson);
+		}
+		
+		LineEntry(String keyJson, Metadata meta, String valueJson, boolean removal) {
+			this.keyJson = keyJson;
+			this.meta = meta;
+			this.valueJson = valueJson;
+			this.removal = removal;
 		}
 		
 		public String getKeyJson() {
-			String keyJson = line.substring(0, tabPos);
 			return keyJson;
 		}
 		
@@ -104,9 +381,38 @@ public abstract class AbstractFileMap<K,V>  implements FileMap<K,V> {
 		}
 		
 		public String getValueJson() {
-			String valueJson = line.substring(tabPos+1);
+			if( valueJson == null )
+				throw new IllegalStateException("The value was not read");
 			return valueJson;
 		}
+		
+		/**
+		 * Returns the expiration time in milliseconds since epoch, or 0 if the entry never expires.
+		 */
+		public long getExpires() {
+			return meta == null ? 0 : meta.expires;
+		}
+		
+		/**
+		 * Returns the value's length in bytes if it is a large value, or 0 otherwise.
+		 */
+		public long getLargeValueLength() {
+			return meta == null ? 0 : meta.length;
+		}
+		
+		/**
+		 * Whether the value is a merge patch to apply on the key's previous value.
+		 */
+		public boolean isPatch() {
+			return meta != null && meta.patch;
+		}
+		
+		/**
+		 * Whether this line marks the removal of the key.
+		 */
+		public boolean isRemoval() {
+			return removal;
+		}
 
 		@Override
 		public V setValue(V value) {
@@ -115,36 +421,107 @@ public abstract class AbstractFileMap<K,V>  implements FileMap<K,V> {
 		
 	}
 	
-	protected Entry<K, V> parseLine(String line) throws IOException {
-		int i = line.indexOf('\t');
-		if( i <= 0 ) {
-			throw new IOException("Failed to parse line: " + line);
+	/**
+	 * Reads the line at the current position of the file. The position is then at the end of the line.
+	 * Large values are skipped without being read, and other values are only read if needed.
+	 * 
+	 * @return the entry, or null if the line is blank or a comment
+	 */
+	protected LineEntry readEntry(boolean withValue) throws IOException {
+		return readEntry(fileio, withValue);
+	}
+	
+	/**
+	 * Same as readEntry(withValue), but from another reader of the file.
+	 */
+	protected LineEntry readEntry(BufferedRandomAccessFile in, boolean withValue) throws IOException {
+		int first = in.peek();
+		if( first == '\n' || first == '#' ) {
+			in.skipUntil((byte) '\n');
+			return null;
+		}
+		
+		long offset = in.pos();
+		String keyJson = new String(in.readUntil((byte) '\t'), StandardCharsets.UTF_8);
+		if( keyJson.isEmpty() || keyJson.indexOf('\n') >= 0 || in.isEOF() )
+			throw new IOException("Failed to parse line at " + offset + ": " + keyJson);
+		
+		Metadata meta = null;
+		if( in.peek() == '@' ) {
+			in.skip(1);
+			meta = Metadata.parse(new String(in.readUntil((byte) '\t'), StandardCharsets.UTF_8));
+		}
+		
+		long valueOffset = in.pos();
+		// a JSON value starting with 'n' can only be null
+		boolean removal = in.peek() == 'n';
+		String valueJson = null;
+		if( meta != null && meta.length > 0 ) {
+			in.skip(meta.length);
+			in.skipUntil((byte) '\n');
 		}
-		String keyJson = line.substring(0, i);
-		String valueJson = line.substring(i+1);
-		K key = mapper.readValue(keyJson, keyType);
-		V value = mapper.readValue(valueJson, valueType);
+		else if( withValue ) {
+			valueJson = in.readLine();
+		}
+		else {
+			in.skipUntil((byte) '\n');
+		}
+		
+		LineEntry entry = new LineEntry(keyJson, meta, valueJson, removal);
+		entry.valueOffset = valueOffset;
+		entry.end = in.pos();
+		return entry;
+	}
+	
+	/**
+	 * Parses the entry's value. Large values are parsed while streaming them from the file, without copying them as a whole.
+	 */
+	protected V readValue(LineEntry entry) throws IOException {
+		if( entry.valueJson != null )
+			return mapper.readValue(entry.valueJson, valueType);
+		
+		fileio.seek(entry.valueOffset);
+		InputStream in = fileio.substream(entry.getLargeValueLength());
+		return mapper.readValue(in, valueType);
+	}
+	
+	/**
+	 * Same as readValue(), but as a JSON tree.
+	 */
+	protected JsonNode readTree(LineEntry entry) throws IOException {
+		if( entry.valueJson != null )
+			return mapper.readTree(entry.valueJson);
+		
+		fileio.seek(entry.valueOffset);
+		InputStream in = fileio.substream(entry.getLargeValueLength());
+		return mapper.readTree(in);
+	}
+	
+	/**
+	 * Changes the size, in bytes, above which values are stored along with their length.
+	 * Such values are skipped instead of being read when loading IndexedFileMaps, and can be streamed.
+	 */
+	public synchronized void setLargeValueThreshold(int bytes) {
+		this.largeValueThreshold = bytes;
+	}
+	
+	protected Entry<K, V> parseLine(String line) throws IOException {
+		LineEntry entry = new LineEntry(line);
+		K key = mapper.readValue(entry.getKeyJson(), keyType);
+		V value = mapper.readValue(entry.getValueJson(), valueType);
 		
 		return new AbstractMap.SimpleEntry<K,V>(key, value);
 	}
 	
 	protected K parseKey(String line) throws IOException {
-		int i = line.indexOf('\t');
-		if( i <= 0 ) {
-			throw new IOException("Failed to parse line: " + line);
-		}
-		String keyJson = line.substring(0, i);
-		K key = mapper.readValue(keyJson, keyType);
+		LineEntry entry = new LineEntry(line);
+		K key = mapper.readValue(entry.getKeyJson(), keyType);
 		return key;
 	}
 	
 	protected V parseValue(String line) throws IOException {
-		int i = line.indexOf('\t');
-		if( i <= 0 ) {
-			throw new IOException("Failed to parse line: " + line);
-		}
-		String valueJson = line.substring(i+1);
-		V value = mapper.readValue(valueJson, valueType);
+		LineEntry entry = new LineEntry(line);
+		V value = mapper.readValue(entry.getValueJson(), valueType);
 		
 		return value;
 	}
@@ -154,23 +531,350 @@ public abstract class AbstractFileMap<K,V>  implements FileMap<K,V> {
 		return fileio.readLine();
 	}
 	
+	protected byte[] formatLine(K key, Object value, Metadata meta) throws IOException {
+		byte[] keyJson = mapper.writeValueAsBytes(key);
+		byte[] valueJson = mapper.writeValueAsBytes(value);
+		if( name != null ) {
+			if( meta == null )
+				meta = new Metadata();
+			meta.map = name;
+		}
+		if( valueJson.length > largeValueThreshold ) {
+			if( meta == null )
+				meta = new Metadata();
+			meta.length = valueJson.length;
+		}
+		byte[] metaJson = (meta == null || meta.isEmpty()) ? null : mapper.writeValueAsBytes(meta);
+		
+		int len = keyJson.length + 1 + valueJson.length + 1;
+		if( metaJson != null )
+			len += metaJson.length + 2;
+		byte[] line = new byte[len];
+		
+		System.arraycopy(keyJson, 0, line, 0, keyJson.length);
+		int pos = keyJson.length;
+		line[pos++] = '\t';
+		if( metaJson != null ) {
+			line[pos++] = '@';
+			System.arraycopy(metaJson, 0, line, pos, metaJson.length);
+			pos += metaJson.length;
+			line[pos++] = '\t';
+		}
+		System.arraycopy(valueJson, 0, line, pos, valueJson.length);
+		line[len - 1] = '\n';
+		return line;
+	}
+	
 	protected long writeLine(K key, V value) {
+		return writeLine(key, value, null);
+	}
+	
+	/**
+	 * Appends a line to the file, without any bookkeeping.
+	 */
+	protected long writeRecord(K key, Object value, Metadata meta) {
 		try {
-			entriesWritten++;
+			if( writtenWhileLoading != null )
+				writtenWhileLoading.add(key);
 			
-			String keyJson = mapper.writeValueAsString(key);
-			String valueJson = mapper.writeValueAsString(value);
-			String line = keyJson + "\t" + valueJson + "\n";
-			
-			long offset = fileio.length();
-			fileio.seek(offset);
-			fileio.write( line.getBytes(StandardCharsets.UTF_8) );
+			byte[] line = formatLine(key, value, meta);
+			long offset = fileio.append(line);
+			entriesWritten++;
+			if( pending != null )
+				pending.remove(key); // superseded by this line
 			return offset;
 		} catch (IOException e) {
 			throw new RuntimeException("Failed to save entry for " + key, e);
 		}
 	}
 	
+	/**
+	 * Appends a line to the file and updates the expirations and indexes.
+	 * When writing behind, the line is held in memory instead and PENDING is returned, unless it is part of the history.
+	 */
+	protected long writeLine(K key, V value, Metadata meta) {
+		long offset;
+		if( pending != null && (meta == null || meta.timestamp == 0) ) {
+			if( writtenWhileLoading != null )
+				writtenWhileLoading.add(key);
+			if( pending.size() >= maxPending && !pending.containsKey(key) )
+				flush();
+			pending.remove(key); // so that the order is the order of the latest writes
+			pending.put(key, new PendingWrite<>(value, meta));
+			offset = PENDING;
+		}
+		else {
+			offset = writeRecord(key, value, meta);
+		}
+		
+		if( meta != null && meta.expires != 0 && value != null )
+			scheduleExpiration(key, meta.expires);
+		else
+			expirations.remove(key);
+		
+		for( SecondaryIndex<K,V> index : indexes.values() ) {
+			if( value == null )
+				index.remove(key);
+			else
+				index.put(key, value);
+		}
+		
+		return offset;
+	}
+	
+	/**
+	 * Holds the writes in memory and appends them in periodic batches, keeping only the latest write of each key.
+	 * This saves a lot of I/O and disk space for frequently updated keys, at the cost of losing
+	 * up to maxDelay of writes on a crash. The writes are flushed at the latest after maxDelay,
+	 * when maxPending keys are pending, or when calling flush() or close().
+	 * A delay of zero disables it.
+	 */
+	public synchronized void setWriteBehind(long maxDelay, TimeUnit unit, int maxPending) {
+		flush();
+		if( flushing != null )
+			flushing.cancel(false);
+		if( maxDelay <= 0 ) {
+			pending = null;
+			flushing = null;
+			return;
+		}
+		this.pending = new LinkedHashMap<>();
+		this.maxPending = maxPending;
+		this.flushing = getScheduler().scheduleWithFixedDelay(this::flushInBackground, maxDelay, maxDelay, unit);
+	}
+	
+	protected boolean isWriteBehind() {
+		return pending != null;
+	}
+	
+	protected boolean isPending(Object key) {
+		return pending != null && pending.containsKey(key);
+	}
+	
+	/**
+	 * Returns the pending value of the key, null if it is a pending removal.
+	 */
+	protected V getPending(Object key) {
+		return pending.get(key).value;
+	}
+	
+	/**
+	 * Appends the pending writes to the file.
+	 */
+	public synchronized void flush() {
+		if( pending == null || pending.isEmpty() )
+			return;
+		// each write leaves the buffer once appended, so that the remaining ones are kept if one fails
+		for( Entry<K, PendingWrite<V>> write : new ArrayList<>(pending.entrySet()) ) {
+			long offset = writeRecord(write.getKey(), write.getValue().value, write.getValue().meta);
+			flushed(write.getKey(), offset);
+		}
+	}
+	
+	/**
+	 * The periodic flush. A failure is reported to the thread's handler instead of being thrown,
+	 * since that would cancel the next flushes. The writes which failed stay buffered until then.
+	 */
+	private void flushInBackground() {
+		try {
+			flush();
+		}
+		catch(RuntimeException e) {
+			Thread thread = Thread.currentThread();
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+		}
+	}
+	
+	/**
+	 * Called when the pending write of the key was appended to the file at the given offset.
+	 */
+	protected void flushed(K key, long offset) {
+	}
+	
+	/**
+	 * Appends a merge patch for the key.
+	 * 
+	 * @param patched the resulting value, only needed if there are indexes
+	 * @param meta the patch's metadata, which should keep the key's expiration
+	 */
+	protected long writePatch(K key, JsonNode patch, V patched, Metadata meta) {
+		meta.patch = true;
+		long offset = writeRecord(key, patch, meta);
+		
+		for( SecondaryIndex<K,V> index : indexes.values() )
+			index.put(key, patched);
+		
+		return offset;
+	}
+	
+	protected boolean hasIndexes() {
+		return !indexes.isEmpty();
+	}
+	
+	protected V applyPatch(V value, JsonNode patch) {
+		try {
+			JsonNode target = (value == null) ? null : mapper.valueToTree(value);
+			return mapper.treeToValue(MergePatch.apply(target, patch), valueType);
+		}
+		catch(IOException e) {
+			throw new RuntimeException("Failed to apply patch " + patch, e);
+		}
+	}
+	
+	/**
+	 * Keeps track of the entry's expiration while loading the file.
+	 * 
+	 * @return false if the entry was removed or is expired
+	 */
+	protected boolean loadExpiration(K key, LineEntry entry) {
+		long expires = entry.getExpires();
+		if( entry.isRemoval() || Metadata.isExpired(expires, System.currentTimeMillis()) ) {
+			expirations.remove(key);
+			return false;
+		}
+		if( expires != 0 )
+			scheduleExpiration(key, expires);
+		else
+			expirations.remove(key);
+		return true;
+	}
+	
+	private void scheduleExpiration(K key, long expires) {
+		expirations.put(key, expires);
+		if( wheel == null ) {
+			wheel = new TimerWheel<>(SWEEP_INTERVAL_MS, WHEEL_SIZE, System.currentTimeMillis());
+			sweeping = getScheduler().scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+		wheel.schedule(key, expires);
+	}
+	
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if( scheduler == null ) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "FileMap scheduler");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return scheduler;
+	}
+	
+	/**
+	 * Evicts the entries which expired since the last sweep.
+	 */
+	protected synchronized void sweep() {
+		long now = System.currentTimeMillis();
+		for( K key : wheel.advance(now) )
+			expireIfDue(key, now);
+	}
+	
+	/**
+	 * Evicts the entry if it has expired.
+	 * 
+	 * @return true if the entry was expired
+	 */
+	protected boolean expireIfDue(Object key) {
+		if( expirations.isEmpty() )
+			return false;
+		return expireIfDue(key, System.currentTimeMillis());
+	}
+	
+	private boolean expireIfDue(Object key, long now) {
+		Long expires = expirations.get(key);
+		if( expires == null || !Metadata.isExpired(expires, now) )
+			return false;
+		expirations.remove(key);
+		evict(key);
+		for( SecondaryIndex<K,V> index : indexes.values() )
+			index.remove(key);
+		return true;
+	}
+	
+	/**
+	 * Evicts all expired entries, such as after compaction, which did not copy them.
+	 */
+	private void evictExpired() {
+		long now = System.currentTimeMillis();
+		for( Object key : new ArrayList<>(expirations.keySet()) )
+			expireIfDue(key, now);
+	}
+	
+	protected boolean isExpired(Object key, long now) {
+		Long expires = expirations.get(key);
+		return expires != null && Metadata.isExpired(expires, now);
+	}
+	
+	protected Metadata getMetadataOrEmpty(Object key) {
+		Metadata meta = getMetadata(key);
+		return (meta == null) ? new Metadata() : meta;
+	}
+	
+	protected Metadata getMetadata(Object key) {
+		Long expires = expirations.get(key);
+		if( expires == null )
+			return null;
+		Metadata meta = new Metadata();
+		meta.expires = expires;
+		return meta;
+	}
+	
+	
+	/**
+	 * Registers an index on some property of the values, extracted by the given function.
+	 * The index is built from the current entries, kept in memory and updated on each modification.
+	 * Entries whose property is null are not indexed.
+	 */
+	public synchronized void addIndex(String name, Function<? super V, ?> extractor) {
+		addIndex(name, SecondaryIndex.of(extractor));
+	}
+	
+	/**
+	 * Registers an index on the value's field located by the JSON pointer, like "/address/city".
+	 * Numbers are compared by value, so that querying 1 or 1.0 makes no difference.
+	 */
+	public synchronized void addIndex(String name, JsonPointer pointer) {
+		addIndex(name, SecondaryIndex.of(pointer));
+	}
+	
+	private void addIndex(String name, SecondaryIndex<K,V> index) {
+		if( indexes.containsKey(name) )
+			throw new IllegalArgumentException("An index named '" + name + "' already exists");
+		awaitLoaded();
+		for( Entry<K,V> entry : snapshot().entrySet() )
+			index.put(entry.getKey(), entry.getValue());
+		indexes.put(name, index);
+	}
+	
+	public synchronized void removeIndex(String name) {
+		indexes.remove(name);
+	}
+	
+	/**
+	 * Returns the keys whose indexed property equals the given value.
+	 */
+	public synchronized Set<K> findKeys(String index, Object value) {
+		SecondaryIndex<K,V> found = indexes.get(index);
+		if( found == null )
+			throw new IllegalArgumentException("No index named '" + index + "'");
+		awaitLoaded();
+		Set<K> keys = new HashSet<>(found.get(value));
+		if( !expirations.isEmpty() ) {
+			// expired entries stay indexed until they are evicted
+			long now = System.currentTimeMillis();
+			keys.removeIf(key -> expireIfDue(key, now));
+		}
+		return keys;
+	}
+	
+	/**
+	 * Returns the entries whose indexed property equals the given value.
+	 */
+	public synchronized Map<K,V> findEntries(String index, Object value) {
+		Map<K,V> entries = new HashMap<>();
+		for( K key : findKeys(index, value) )
+			entries.put(key, get(key));
+		return entries;
+	}
 	
 	@Override
 	public synchronized void putAll(Map<? extends K, ? extends V> m) {
@@ -178,15 +882,210 @@ public abstract class AbstractFileMap<K,V>  implements FileMap<K,V> {
 			put(entry.getKey(), entry.getValue());
 	}
 	
+	/**
+	 * Truncates the file. When it is shared with other maps, a removal is written for each key instead.
+	 */
 	protected synchronized void clearLines() {
+		awaitLoaded();
 		try {
-			fileio.seek(0);
-			fileio.truncate(0);
-			entriesWritten = 0;
+			if( store == null ) {
+				fileio.seek(0);
+				fileio.truncate(0);
+				entriesWritten = 0;
+			}
+			else {
+				// the pending removals must be written too, their keys are not in the key set anymore
+				flush();
+				for( K key : new ArrayList<>(keySet()) )
+					writeRecord(key, null, null);
+			}
+			generation++;
+			if( pending != null )
+				pending.clear();
+			expirations.clear();
+			if( wheel != null )
+				wheel.clear();
+			for( SecondaryIndex<K,V> index : indexes.values() )
+				index.clear();
 		} catch (IOException e) {
 			throw new RuntimeException("Failed to clear persistent map", e);
 		}
 	}
+	
+	/**
+	 * Rewrites the file with only the live entries, dropping the obsolete, removed and expired ones.
+	 * The new file is written aside and then moved in place of the old one, so that a crash during compaction does not lose data.
+	 * Snapshots taken before the compaction are invalidated.
+	 * When the file is shared with other maps, the whole store is compacted.
+	 */
+	public void compact() throws IOException {
+		if( store != null ) {
+			// not holding this map's lock, which the store acquires after its own
+			store.compact();
+			return;
+		}
+		synchronized(this) {
+			compactFile();
+		}
+	}
+	
+	private void compactFile() throws IOException {
+		awaitLoaded();
+		flush();
+		File temp = new File(file.getPath() + ".compacting");
+		if( temp.exists() )
+			temp.delete();
+		
+		long written;
+		BufferedRandomAccessFile out = new BufferedRandomAccessFile(temp, MODE);
+		try {
+			try {
+				written = copyLiveEntries(out);
+				// otherwise the move may reach the disk before the data does
+				out.sync();
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch(IOException | RuntimeException e) {
+			temp.delete();
+			throw e;
+		}
+		
+		fileio.close();
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException | RuntimeException e) {
+			// the current file is still in place, and so is its index
+			temp.delete();
+			fileio = new BufferedRandomAccessFile(file, MODE);
+			throw e;
+		}
+		fileio = new BufferedRandomAccessFile(file, MODE);
+		switchToCompacted();
+		evictExpired();
+		entriesWritten = written;
+		generation++;
+	}
+
+	/**
+	 * Writes a compacted copy of the live entries to the file, which is written aside and then moved in place.
+	 * 
+	 * @see #backup(OutputStream, Checkpoint)
+	 */
+	public Checkpoint backup(File target) throws IOException {
+		File temp = new File(target.getPath() + ".writing");
+		Checkpoint checkpoint;
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				checkpoint = backup(out);
+				// otherwise the move may reach the disk before the data does
+				out.getFD().sync();
+			}
+			finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException | RuntimeException e) {
+			temp.delete();
+			throw e;
+		}
+		return checkpoint;
+	}
+	
+	/**
+	 * Writes a compacted copy of the live entries to the output, in the same format as the file.
+	 * 
+	 * @see #backup(OutputStream, Checkpoint)
+	 */
+	public Checkpoint backup(OutputStream out) throws IOException {
+		return backup(out, null);
+	}
+	
+	/**
+	 * Writes the changes since the given checkpoint: the current value of each key written since, or a removal.
+	 * Appending them to the backup of that checkpoint gives the same entries as a full backup.
+	 * If the checkpoint is null, a full backup is written instead.
+	 * 
+	 * The lock is only held while taking a snapshot, so that writers are not blocked while the entries are written.
+	 * Only the live entries are read, as well as the part of the file written since the checkpoint.
+	 * The output is not closed.
+	 * 
+	 * @return the checkpoint of this backup
+	 * @throws IllegalStateException if the map was cleared or compacted since the checkpoint
+	 */
+	public Checkpoint backup(OutputStream out, Checkpoint since) throws IOException {
+		Snapshot<K,V> snapshot;
+		Map<K,Long> expires;
+		long backupGeneration;
+		synchronized(this) {
+			awaitLoaded();
+			flush();
+			if( since != null && !since.isValidFor(this, generation) )
+				throw new IllegalStateException("The map was cleared or compacted since the checkpoint, a full backup is needed");
+			snapshot = snapshot();
+			expires = new HashMap<>(expirations);
+			backupGeneration = generation;
+		}
+		
+		long now = System.currentTimeMillis();
+		OutputStream buffered = new BufferedOutputStream(out);
+		if( since == null ) {
+			for( Entry<K,V> entry : snapshot.entrySet() ) {
+				Long expiration = expires.get(entry.getKey());
+				if( expiration == null || !Metadata.isExpired(expiration, now) )
+					buffered.write(formatLine(entry.getKey(), entry.getValue(), backupMetadata(expiration)));
+			}
+		}
+		else {
+			for( K key : changedKeys(since.getPosition(), snapshot.getPosition(), backupGeneration) ) {
+				Long expiration = expires.get(key);
+				V value = snapshot.get(key);
+				if( value == null || (expiration != null && Metadata.isExpired(expiration, now)) )
+					buffered.write(formatLine(key, null, null));
+				else
+					buffered.write(formatLine(key, value, backupMetadata(expiration)));
+			}
+		}
+		buffered.flush();
+		return new Checkpoint(this, snapshot.getPosition(), backupGeneration);
+	}
+	
+	private static Metadata backupMetadata(Long expiration) {
+		if( expiration == null )
+			return null;
+		Metadata meta = new Metadata();
+		meta.expires = expiration;
+		return meta;
+	}
+	
+	/**
+	 * Reads the keys of the lines between both positions, using a separate reader so that the map is not locked.
+	 */
+	private Set<K> changedKeys(long from, long to, long expectedGeneration) throws IOException {
+		Set<K> keys = new LinkedHashSet<>();
+		BufferedRandomAccessFile in = new BufferedRandomAccessFile(file, "r");
+		try {
+			in.seek(from);
+			while( in.pos() < to ) {
+				LineEntry entry = readEntry(in, false);
+				if( entry != null && isOwnLine(entry) )
+					keys.add(mapper.readValue(entry.getKeyJson(), keyType));
+			}
+		}
+		finally {
+			in.close();
+		}
+		synchronized(this) {
+			if( generation != expectedGeneration )
+				throw new ConcurrentModificationException("The map was cleared or compacted during the backup");
+		}
+		return keys;
+	}
 
 	/**
 	 * Returns an estimate of the file's content fragmentation. It is the ratio of obsolete data in the file.
@@ -206,7 +1105,48 @@ public abstract class AbstractFileMap<K,V>  implements FileMap<K,V> {
 
 	
 	public void close() throws IOException {
-		fileio.close();
+		synchronized(this) {
+			if( !loaded.isDone() ) {
+				// stops the background loading
+				loaded.completeExceptionally(new IOException("The map was closed while loading"));
+				notifyAll();
+			}
+			flush();
+			if( flushing != null )
+				flushing.cancel(false);
+			if( sweeping != null )
+				sweeping.cancel(false);
+			fileio.close();
+		}
+		if( store != null )
+			store.closed(this);
+	}
+	
+	/**
+	 * Called by the store while compacting, holding this map's lock: writes the live entries to the store's new file.
+	 */
+	long copyForCompaction(BufferedRandomAccessFile out) throws IOException {
+		awaitLoaded();
+		flush();
+		return copyLiveEntries(out);
+	}
+	
+	/**
+	 * Called by the store once compacted, holding this map's lock, to use the new file.
+	 */
+	void compacted(BufferedRandomAccessFile fileio, long written) {
+		this.fileio = fileio;
+		switchToCompacted();
+		evictExpired();
+		this.entriesWritten = written;
+		generation++;
+	}
+	
+	/**
+	 * Called by the store when its compaction failed and the current file was reopened.
+	 */
+	void reopened(BufferedRandomAccessFile fileio) {
+		this.fileio = fileio;
 	}
 	
 }
@@ -1,9 +1,12 @@
 package com.github.dagnelies.filemap;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -28,7 +31,8 @@ public class BufferedRandomAccessFile extends InputStream {
 	private long file_pos = 0; 
 	
 	// keep track of this separately since RandomAccessFile.length() is an expensive operation
-	private long length = 0; 
+	// it is shared by the views of the same file, see view()
+	private final Shared shared;
 	
 	// the buffer used when reading
 	private byte[] buffer;
@@ -36,27 +40,85 @@ public class BufferedRandomAccessFile extends InputStream {
 	// the position inside the buffer
 	private int buffer_pos = 0;
 	
-	// the underlying file
+	// the amount of bytes read into the buffer, which may be smaller than its capacity
+	private int buffer_end = 0;
+	
+	// the underlying file, read and written at explicit positions so that several views can use it concurrently
 	private RandomAccessFile raf;
+	private FileChannel channel;
+	
+	// whether closing this closes the file, false for views
+	private final boolean owner;
+	
+	private static class Shared {
+		volatile long length;
+	}
 	
 	
 	public BufferedRandomAccessFile(File file, String mode) throws IOException {
 		raf = new RandomAccessFile(file, mode);
-		length = raf.length();
+		channel = raf.getChannel();
+		shared = new Shared();
+		shared.length = raf.length();
+		owner = true;
+	}
+	
+	private BufferedRandomAccessFile(BufferedRandomAccessFile file) {
+		raf = file.raf;
+		channel = file.channel;
+		shared = file.shared;
+		owner = false;
+	}
+	
+	/**
+	 * Returns another reader/writer of the same file, with its own position and buffer, but sharing the file descriptor.
+	 * Views can be used by different threads, as long as each one is used by a single thread at a time.
+	 * Closing a view does not close the file.
+	 */
+	public BufferedRandomAccessFile view() {
+		return new BufferedRandomAccessFile(this);
 	}
 	
 	
+	// the position is kept, it is then given by file_pos alone
 	void clearBuffer() {
+		file_pos = pos();
 		buffer = null;
 		buffer_pos = 0;
+		buffer_end = 0;
 	}
 	
 	public void write(byte[] data) throws IOException {
+		write(data, 0, data.length);
+	}
+	
+	public void write(byte[] data, int off, int len) throws IOException {
 		clearBuffer();
-		raf.write(data);
-		file_pos += data.length;
-		if( length < file_pos )
-			length = file_pos;
+		synchronized(shared) {
+			writeFully(ByteBuffer.wrap(data, off, len), file_pos);
+			file_pos += len;
+			if( shared.length < file_pos )
+				shared.length = file_pos;
+		}
+	}
+	
+	/**
+	 * Writes the data at the end of the file, atomically with regard to the other views, without moving the position.
+	 * 
+	 * @return the offset it was written at
+	 */
+	public long append(byte[] data) throws IOException {
+		synchronized(shared) {
+			long offset = shared.length;
+			writeFully(ByteBuffer.wrap(data), offset);
+			shared.length = offset + data.length;
+			return offset;
+		}
+	}
+	
+	private void writeFully(ByteBuffer data, long pos) throws IOException {
+		while( data.hasRemaining() )
+			pos += channel.write(data, pos);
 	}
 	
 	public void write(String str) throws IOException {
@@ -64,43 +126,49 @@ public class BufferedRandomAccessFile extends InputStream {
 	}
 	
 	public void write(byte b) throws IOException {
-		clearBuffer();
-		raf.write(b);
-		file_pos += 1;
-		if( length < file_pos )
-			length = file_pos;
+		write(new byte[] {b}, 0, 1);
+	}
+	
+	/**
+	 * Forces the written data to the storage device.
+	 */
+	public void sync() throws IOException {
+		channel.force(true);
 	}
 	
 	public void close() throws IOException {
 		clearBuffer();
-		raf.close();
+		if( owner )
+			raf.close();
 	}
 	
 	public void truncate(long len) throws IOException {
 		clearBuffer();
-		raf.setLength(len);
-		length = len;
+		synchronized(shared) {
+			raf.setLength(len);
+			shared.length = len;
+		}
 		if( file_pos > len )
 			file_pos = len;
 	}
 	
 	public void seek(long pos) throws IOException {
-		clearBuffer();
-		if( pos != file_pos ) {
-			raf.seek(pos);
-			file_pos = pos;
+		long buffer_start = file_pos - buffer_end;
+		if( buffer != null && pos >= buffer_start && pos < file_pos ) {
+			// already buffered, typically when reading nearby lines
+			buffer_pos = (int) (pos - buffer_start);
+			return;
 		}
+		clearBuffer();
+		file_pos = pos;
 	}
 	
 	public long pos() {
-		if( buffer_pos > 0 )
-			return file_pos - buffer.length + buffer_pos;
-		else
-			return file_pos;
+		return file_pos - buffer_end + buffer_pos;
 	}
 	
 	public long length() {
-		return length;
+		return shared.length;
 	}
 	
 	
@@ -112,17 +180,20 @@ public class BufferedRandomAccessFile extends InputStream {
 		if( isEOF() )
 			return null;
 		
-		if( buffer == null || buffer_pos == buffer.length ) {
+		if( buffer == null || buffer_pos == buffer_end ) {
 			fillBuffer(); // fill it
 		}
-		else if( buffer.length > DEFAULT_BUFFER_SIZE ) {
-			// trim "left side" of buffer if unnecessary big due to a previous large read
-			buffer = Arrays.copyOfRange(buffer, buffer_pos, buffer.length); // removes everything before buffer_pos
+		else if( buffer.length > DEFAULT_BUFFER_SIZE && buffer_end - buffer_pos <= DEFAULT_BUFFER_SIZE ) {
+			// shrink the buffer if unnecessary big due to a previous large read
+			byte[] remaining = new byte[DEFAULT_BUFFER_SIZE];
+			System.arraycopy(buffer, buffer_pos, remaining, 0, buffer_end - buffer_pos);
+			buffer = remaining;
+			buffer_end -= buffer_pos;
 			buffer_pos = 0;
 		}
 		
-		assert buffer.length > 0;
-		assert buffer_pos < buffer.length;
+		assert buffer_end > 0;
+		assert buffer_pos < buffer_end;
 		
 		// Note: this might make the buffer grow.
 		// Using a constant size buffer and constructing the string line chunk after chunk might sound easier.
@@ -130,11 +201,11 @@ public class BufferedRandomAccessFile extends InputStream {
 		int start = buffer_pos;
 		while(buffer[buffer_pos] != delimiter) {
 			buffer_pos++;
-			if( buffer_pos == buffer.length ) {
+			if( buffer_pos == buffer_end ) {
 				if( isEOF() )
 					break;
 				else
-					expandBuffer();
+					start -= expandBuffer(start);
 			}
 		}
 		assert isEOF() || buffer[buffer_pos] == delimiter;
@@ -147,6 +218,67 @@ public class BufferedRandomAccessFile extends InputStream {
 		return result;
 	}
 	
+	/**
+	 * Returns the next byte without consuming it, or -1 at the end of the file.
+	 */
+	public int peek() throws IOException {
+		if( isEOF() )
+			return -1;
+		if( buffer == null || buffer_pos == buffer_end )
+			fillBuffer();
+		return buffer[buffer_pos] & 0xFF;
+	}
+	
+	/**
+	 * Skips the next n bytes, without reading them if they are not already buffered.
+	 */
+	public long skip(long n) throws IOException {
+		if( buffer != null && n <= buffer_end - buffer_pos )
+			buffer_pos += (int) n;
+		else
+			seek(pos() + n);
+		return n;
+	}
+	
+	/**
+	 * Returns a stream over the next len bytes, reading them through this file.
+	 * It is meant for large content which should not be fully copied in memory.
+	 * This file should not be used otherwise until the stream was consumed, and closing the stream does not close this file.
+	 */
+	public InputStream substream(long len) {
+		return new InputStream() {
+			long remaining = len;
+			
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int n = read(b, 0, 1);
+				return n < 0 ? -1 : b[0] & 0xFF;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int n) throws IOException {
+				if( remaining <= 0 )
+					return -1;
+				n = (int) Math.min(n, remaining);
+				if( buffer != null && buffer_pos < buffer_end ) {
+					// first consume what is already buffered
+					n = Math.min(n, buffer_end - buffer_pos);
+					System.arraycopy(buffer, buffer_pos, b, off, n);
+					buffer_pos += n;
+				}
+				else {
+					clearBuffer();
+					n = BufferedRandomAccessFile.this.read(b, off, n);
+					if( n < 0 )
+						throw new EOFException("Unexpected end of file at " + file_pos);
+				}
+				remaining -= n;
+				return n;
+			}
+		};
+	}
+	
 	/**
 	 * Skip all bytes until delimiter(inclusive) is encountered.
 	 * 
@@ -157,12 +289,12 @@ public class BufferedRandomAccessFile extends InputStream {
 		if( isEOF() )
 			return;
 		
-		if( buffer == null || buffer_pos == buffer.length )
+		if( buffer == null || buffer_pos == buffer_end )
 			fillBuffer(); // fill it
 		
 		while(buffer[buffer_pos] != delimiter) {
 			buffer_pos++;
-			if( buffer_pos == buffer.length ) {
+			if( buffer_pos == buffer_end ) {
 				if( isEOF() )
 					return;
 				else
@@ -188,29 +320,45 @@ public class BufferedRandomAccessFile extends InputStream {
 	
 	/**
 	 * Reads the next chunk of file and append it to the buffer.
+	 * The buffer capacity is doubled when full, so that reading a large line costs a linear amount of copying.
+	 * The content before "keep" is not needed anymore and may be discarded.
+	 * 
+	 * @return the amount of bytes the buffer content was shifted to the left
 	 */
-	private void expandBuffer() throws IOException {
+	private int expandBuffer(int keep) throws IOException {
 		assert !isEOF();
-		assert buffer == null || buffer_pos <= buffer.length;
+		assert buffer == null || buffer_pos <= buffer_end;
 		
+		int shift = 0;
 		if( buffer == null ) {
 			// create it
 			buffer_pos = 0;
+			buffer_end = 0;
 			buffer = new byte[DEFAULT_BUFFER_SIZE];
 		}
-		if( buffer_pos == buffer.length ) {
-			// expand it
-			buffer = Arrays.copyOf(buffer, buffer.length + DEFAULT_BUFFER_SIZE);
-		}
-		// read last chunk
-		int len = read(buffer, buffer_pos, DEFAULT_BUFFER_SIZE);
-		
-		// if necessary (when EOF), trim the empty buffer at the end
-		if(len < DEFAULT_BUFFER_SIZE) {
-			buffer = Arrays.copyOf(buffer, buffer.length - DEFAULT_BUFFER_SIZE + len);
+		else if( buffer_end == buffer.length ) {
+			int kept = buffer_end - keep;
+			if( kept <= buffer.length / 2 ) {
+				// enough room once the unneeded content is discarded
+				System.arraycopy(buffer, keep, buffer, 0, kept);
+			}
+			else {
+				// expand it
+				byte[] expanded = new byte[buffer.length * 2];
+				System.arraycopy(buffer, keep, expanded, 0, kept);
+				buffer = expanded;
+			}
+			shift = keep;
+			buffer_pos -= shift;
+			buffer_end -= shift;
 		}
+		// read next chunk
+		int len = read(buffer, buffer_end, buffer.length - buffer_end);
+		if( len > 0 )
+			buffer_end += len;
 		
 		//System.out.println("New buffer size: " + buffer.length);
+		return shift;
 	}
 	
 	/**
@@ -218,32 +366,32 @@ public class BufferedRandomAccessFile extends InputStream {
 	 */
 	private void fillBuffer() throws IOException {
 		assert !isEOF();
-		assert buffer == null || buffer_pos == buffer.length;
+		assert buffer == null || buffer_pos == buffer_end;
 		
 		// reset buffer 
 		buffer_pos = 0;
+		buffer_end = 0;
 		if( buffer == null || buffer.length != DEFAULT_BUFFER_SIZE)
 			buffer = new byte[DEFAULT_BUFFER_SIZE];
 		
-		// read last chunk
+		// read next chunk
 		int len = read(buffer, 0, DEFAULT_BUFFER_SIZE);
-		
-		// if necessary, trim the end
-		if(len < DEFAULT_BUFFER_SIZE) {
-			buffer = Arrays.copyOf(buffer, len);
-		}
+		if( len > 0 )
+			buffer_end = len;
 	}
 	
 	@Override
 	public int read() throws IOException {
-		file_pos++;
-		return raf.read();
+		byte[] b = new byte[1];
+		int len = read(b, 0, 1);
+		return len <= 0 ? -1 : b[0] & 0xFF;
 	}
 	
 	@Override
 	public int read(byte b[], int off, int len) throws IOException {
-		len = raf.read(b, off, len);
-		file_pos += len;
+		len = channel.read(ByteBuffer.wrap(b, off, len), file_pos);
+		if( len > 0 )
+			file_pos += len;
 		return len;
 	}
 }
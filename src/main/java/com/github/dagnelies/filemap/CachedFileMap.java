@@ -6,6 +6,9 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
 
 /**
  * This thread safe hash map is stored both in memory and on disk.
@@ -27,52 +30,137 @@ public class CachedFileMap<K,V> extends AbstractFileMap<K,V> {
 		super(file, keyType, valueType);
 	}
 	
+	/**
+	 * @param loadInBackground if true, returns immediately and loads the file in the background, see whenLoaded()
+	 */
+	public CachedFileMap(File file, Class<K> keyType, Class<V> valueType, boolean loadInBackground) throws IOException {
+		super(file, keyType, valueType, loadInBackground);
+	}
+	
+	/**
+	 * Opens a map among others in the store's file, see FileMapStore.
+	 */
+	CachedFileMap(FileMapStore store, String name, Class<K> keyType, Class<V> valueType) throws IOException {
+		super(store, name, keyType, valueType);
+	}
+	
 	@Override
 	protected void init() throws IOException {
 		internal = new HashMap<>();
 	}
 	
 	@Override
-	protected void loadEntry(long offset, String line) throws IOException {
-		Entry<K, V> entry = parseLine(line);
-		internal.put(entry.getKey(), entry.getValue());
+	protected boolean loadsValues() {
+		return true;
+	}
+	
+	@Override
+	protected void loadEntry(long offset, K key, LineEntry entry) throws IOException {
+		if( !loadExpiration(key, entry) )
+			internal.remove(key);
+		else if( entry.isPatch() )
+			internal.put(key, applyPatch(internal.get(key), readTree(entry)));
+		else
+			internal.put(key, readValue(entry));
+	}
+	
+	@Override
+	protected void evict(Object key) {
+		internal.remove(key);
+	}
+	
+	@Override
+	protected long copyLiveEntries(BufferedRandomAccessFile out) throws IOException {
+		long now = System.currentTimeMillis();
+		long count = 0;
+		for( Entry<K,V> entry : internal.entrySet() ) {
+			if( isExpired(entry.getKey(), now) )
+				continue;
+			out.write(formatLine(entry.getKey(), entry.getValue(), getMetadata(entry.getKey())));
+			count++;
+		}
+		return count;
 	}
 	
 	@Override
 	public synchronized int size() {
+		awaitLoaded();
 		return internal.size();
 	}
 
 	@Override
 	public synchronized boolean isEmpty() {
+		awaitLoaded();
 		return internal.isEmpty();
 	}
 
 	@Override
 	public synchronized boolean containsKey(Object key) {
+		awaitLoaded(key);
+		if( expireIfDue(key) )
+			return false;
 		return internal.containsKey(key);
 	}
 
 	@Override
 	public synchronized boolean containsValue(Object value) {
+		awaitLoaded();
 		return internal.containsValue(value);
 	}
 
 	@Override
 	public synchronized V get(Object key) {
+		awaitLoaded(key);
+		if( expireIfDue(key) )
+			return null;
 		return internal.get(key);
 	}
 
 	@Override
 	public synchronized V put(K key, V value) {
+		boolean known = isKnown(key);
 		writeLine(key, value);
-		return internal.put(key, value);
+		V previous = internal.put(key, value);
+		// the value loaded so far may not be the previous one
+		return known ? previous : null;
+	}
+	
+	@Override
+	public synchronized V put(K key, V value, long ttl, TimeUnit unit) {
+		boolean known = isKnown(key);
+		writeLine(key, value, Metadata.expiringIn(ttl, unit));
+		V previous = internal.put(key, value);
+		return known ? previous : null;
+	}
+
+	/**
+	 * Only the patch is appended to the file, instead of the whole value.
+	 * Since the values are in memory, the patches are simply applied in order when loading the file.
+	 * When writing behind, the whole value is written instead, so that it is coalesced with the other writes of the key.
+	 */
+	@Override
+	public synchronized void patch(K key, Object patch) {
+		JsonNode node = mapper.valueToTree(patch);
+		awaitLoaded(key);
+		V current = get(key);
+		V patched = applyPatch(current, node);
+		if( patched == null ) {
+			remove(key);
+			return;
+		}
+		if( current == null || !node.isObject() || isWriteBehind() )
+			writeLine(key, patched, getMetadata(key));
+		else
+			writePatch(key, node, patched, getMetadataOrEmpty(key));
+		internal.put(key, patched);
 	}
 
 	@Override
 	public synchronized V remove(Object key) {
+		boolean known = isKnown(key);
 		writeLine((K) key, null);
-		return internal.remove(key);
+		V previous = internal.remove(key);
+		return known ? previous : null;
 	}
 
 	@Override
@@ -81,20 +169,43 @@ public class CachedFileMap<K,V> extends AbstractFileMap<K,V> {
 		internal.clear();
 	}
 
+	/**
+	 * Returns a live view of the keys. Iterating it while other threads modify the map is unsafe, use snapshot() for this purpose.
+	 */
 	@Override
 	public synchronized Set<K> keySet() {
+		awaitLoaded();
 		return internal.keySet();
 	}
 
 
+	/**
+	 * Returns a live view of the values. Iterating it while other threads modify the map is unsafe, use snapshot() for this purpose.
+	 */
 	@Override
 	public synchronized Collection<V> values() {
+		awaitLoaded();
 		return internal.values();
 	}
 
+	/**
+	 * Returns a live view of the entries. Iterating it while other threads modify the map is unsafe, use snapshot() for this purpose.
+	 */
 	@Override
 	public synchronized Set<Entry<K, V>> entrySet() {
+		awaitLoaded();
 		return internal.entrySet();
 	}
+	
+	/**
+	 * Copies the entries in memory. Since the values are already deserialized, this only costs a shallow copy of the hash map.
+	 */
+	@Override
+	public synchronized Snapshot<K, V> snapshot() {
+		awaitLoaded();
+		// so that the position covers the pending writes
+		flush();
+		return new Snapshot<>(diskSize(), new HashMap<>(internal));
+	}
 
 }
@@ -0,0 +1,36 @@
+package com.github.dagnelies.filemap;
+
+/**
+ * The log position a backup corresponds to, as returned by FileMap.backup().
+ * It can be passed to a later backup, so that only the changes since this checkpoint are written.
+ * 
+ * Checkpoints are only valid for the map instance which returned them, and until the map is cleared or compacted.
+ */
+public class Checkpoint {
+
+	private final Object map;
+	private final long position;
+	private final long generation;
+	
+	Checkpoint(Object map, long position, long generation) {
+		this.map = map;
+		this.position = position;
+		this.generation = generation;
+	}
+	
+	/**
+	 * The log position (file length) at the time of the backup.
+	 */
+	public long getPosition() {
+		return position;
+	}
+	
+	boolean isValidFor(Object map, long generation) {
+		return this.map == map && this.generation == generation;
+	}
+	
+	@Override
+	public String toString() {
+		return "Checkpoint@" + position;
+	}
+}
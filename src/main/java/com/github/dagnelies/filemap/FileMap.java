@@ -2,13 +2,97 @@ package com.github.dagnelies.filemap;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonPointer;
 
 public interface FileMap<K, V> extends Map<K, V> {
 
+	/**
+	 * Puts an entry which expires after the given time to live.
+	 * Expired entries are removed from memory and ignored when the file is loaded again.
+	 */
+	public V put(K key, V value, long ttl, TimeUnit unit);
+	
+	/**
+	 * Applies a JSON merge patch (RFC 7386) to the key's value.
+	 * Only the patch is written to the file, so that small changes of large values stay cheap.
+	 */
+	public void patch(K key, Object patch);
+	
+	/**
+	 * Registers an in-memory index on some property of the values.
+	 */
+	public void addIndex(String name, Function<? super V, ?> extractor);
+	
+	/**
+	 * Registers an in-memory index on the value's field located by the JSON pointer.
+	 */
+	public void addIndex(String name, JsonPointer pointer);
+	
+	public void removeIndex(String name);
+	
+	/**
+	 * Returns the keys whose indexed property equals the given value.
+	 */
+	public Set<K> findKeys(String index, Object value);
+	
+	/**
+	 * Returns the entries whose indexed property equals the given value.
+	 */
+	public Map<K,V> findEntries(String index, Object value);
+	
+	/**
+	 * Rewrites the file with only the live entries.
+	 */
+	public void compact() throws IOException;
+	
+	/**
+	 * Appends the writes held by the write-behind buffer, if any, to the file.
+	 */
+	public void flush();
+	
+	/**
+	 * Writes a compacted copy of the live entries to the file, without blocking writers.
+	 */
+	public Checkpoint backup(File target) throws IOException;
+	
+	/**
+	 * Writes a compacted copy of the live entries to the output, without blocking writers.
+	 */
+	public Checkpoint backup(OutputStream out) throws IOException;
+	
+	/**
+	 * Writes the changes since the checkpoint, to be appended to the backup it was returned by.
+	 */
+	public Checkpoint backup(OutputStream out, Checkpoint since) throws IOException;
+
 	public File getFile();
 	
 	public long diskSize() throws IOException;
 	
+	/**
+	 * Returns an estimate of the ratio of obsolete data in the file.
+	 */
+	public double getFragmentation();
+	
+	/**
+	 * Returns an immutable, point-in-time view of this map.
+	 * Unlike keySet(), values() and entrySet(), it can be iterated while other threads modify the map.
+	 */
+	public Snapshot<K,V> snapshot();
+	
+	/**
+	 * Returns a future completed once the file is loaded. When not loaded in the background, it is already completed.
+	 */
+	public CompletableFuture<Void> whenLoaded();
+	
+	public boolean isLoaded();
+	
 	public void close() throws IOException;
 }
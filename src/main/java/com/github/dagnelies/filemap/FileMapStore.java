@@ -0,0 +1,202 @@
+package com.github.dagnelies.filemap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Several named maps stored in a single file, like column families.
+ * Each line is tagged with the name of its map:
+ * 
+ * 	"my-key"	@{"c":"users"}	"my-value"
+ * 
+ * The maps share the same file descriptor and can be flushed and synced together,
+ * while each one keeps its own in-memory index, its own lock and the FileMap interface.
+ * Each map is loaded by reading the whole file, skipping the lines of the other maps.
+ */
+public class FileMapStore implements Closeable {
+
+	private static final String MODE = "rw";
+	
+	private final File file;
+	private BufferedRandomAccessFile fileio;
+	
+	// in the order they were opened, which is also the order in which compaction locks them
+	private final Map<String, AbstractFileMap<?,?>> maps = new LinkedHashMap<>();
+	
+	public FileMapStore(File file) throws IOException {
+		this.file = file;
+		this.fileio = new BufferedRandomAccessFile(file, MODE);
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	BufferedRandomAccessFile view() {
+		return fileio.view();
+	}
+	
+	/**
+	 * Opens the map of the given name, keeping the values in memory like a CachedFileMap.
+	 */
+	public synchronized <K,V> CachedFileMap<K,V> openCached(String name, Class<K> keyType, Class<V> valueType) throws IOException {
+		checkName(name);
+		CachedFileMap<K,V> map = new CachedFileMap<>(this, name, keyType, valueType);
+		maps.put(name, map);
+		return map;
+	}
+	
+	/**
+	 * Opens the map of the given name, keeping only the keys in memory like an IndexedFileMap.
+	 */
+	public synchronized <K,V> IndexedFileMap<K,V> openIndexed(String name, Class<K> keyType, Class<V> valueType) throws IOException {
+		checkName(name);
+		IndexedFileMap<K,V> map = new IndexedFileMap<>(this, name, keyType, valueType);
+		maps.put(name, map);
+		return map;
+	}
+	
+	private void checkName(String name) {
+		if( fileio == null )
+			throw new IllegalStateException("The store is closed");
+		if( name == null || name.isEmpty() )
+			throw new IllegalArgumentException("The map name cannot be empty");
+		if( maps.containsKey(name) )
+			throw new IllegalArgumentException("The map '" + name + "' is already open");
+	}
+	
+	/**
+	 * Returns the names of the maps currently open.
+	 */
+	public synchronized Set<String> getOpenMaps() {
+		return new LinkedHashSet<>(maps.keySet());
+	}
+	
+	synchronized void closed(AbstractFileMap<?,?> map) {
+		maps.remove(map.getName());
+	}
+	
+	/**
+	 * Appends the pending writes of all maps, see AbstractFileMap.setWriteBehind().
+	 */
+	public synchronized void flush() {
+		for( AbstractFileMap<?,?> map : maps.values() )
+			map.flush();
+	}
+	
+	/**
+	 * Flushes all maps and forces the file to the storage device, with a single sync for all of them.
+	 */
+	public synchronized void sync() throws IOException {
+		flush();
+		fileio.sync();
+	}
+	
+	/**
+	 * Rewrites the file with only the live entries of the open maps.
+	 * The lines of the maps which are not open are copied as they are, since they cannot be told apart.
+	 * The file is written aside and then moved in place of the old one.
+	 */
+	public synchronized void compact() throws IOException {
+		compact(new ArrayList<>(maps.values()), 0);
+	}
+	
+	// locks the maps one after the other, so that none of them is used while compacting
+	private void compact(List<AbstractFileMap<?,?>> locked, int i) throws IOException {
+		if( i < locked.size() ) {
+			synchronized(locked.get(i)) {
+				compact(locked, i + 1);
+			}
+			return;
+		}
+		
+		File temp = new File(file.getPath() + ".compacting");
+		if( temp.exists() )
+			temp.delete();
+		
+		long[] written = new long[locked.size()];
+		BufferedRandomAccessFile out = new BufferedRandomAccessFile(temp, MODE);
+		try {
+			try {
+				copyClosedMaps(out);
+				for (int m = 0; m < locked.size(); m++)
+					written[m] = locked.get(m).copyForCompaction(out);
+				// otherwise the move may reach the disk before the data does
+				out.sync();
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch(IOException | RuntimeException e) {
+			temp.delete();
+			throw e;
+		}
+		
+		fileio.close();
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException | RuntimeException e) {
+			// the current file is still in place, the maps keep using it
+			temp.delete();
+			fileio = new BufferedRandomAccessFile(file, MODE);
+			for( AbstractFileMap<?,?> map : locked )
+				map.reopened(fileio.view());
+			throw e;
+		}
+		fileio = new BufferedRandomAccessFile(file, MODE);
+		for (int m = 0; m < locked.size(); m++)
+			locked.get(m).compacted(fileio.view(), written[m]);
+	}
+	
+	private void copyClosedMaps(BufferedRandomAccessFile out) throws IOException {
+		BufferedRandomAccessFile in = fileio.view();
+		while( !in.isEOF() ) {
+			String line = in.readLine();
+			if( line.isEmpty() || line.startsWith("#") )
+				continue;
+			if( !maps.containsKey(mapOf(line)) ) {
+				out.write(line);
+				out.write((byte) '\n');
+			}
+		}
+	}
+	
+	private static String mapOf(String line) throws IOException {
+		int tabPos = line.indexOf('\t');
+		if( tabPos < 0 || !line.startsWith("@", tabPos + 1) )
+			return null;
+		int metaEnd = line.indexOf('\t', tabPos + 1);
+		if( metaEnd < 0 )
+			throw new IOException("Failed to parse line: " + line);
+		return Metadata.parse(line.substring(tabPos + 2, metaEnd)).map;
+	}
+	
+	/**
+	 * Closes all open maps and the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		List<AbstractFileMap<?,?>> open;
+		synchronized(this) {
+			open = new ArrayList<>(maps.values());
+		}
+		// not holding the store's lock, which the maps acquire after their own when closing
+		for( AbstractFileMap<?,?> map : open )
+			map.close();
+		synchronized(this) {
+			fileio.close();
+			fileio = null;
+		}
+	}
+}
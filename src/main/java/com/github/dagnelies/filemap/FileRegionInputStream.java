@@ -0,0 +1,62 @@
+package com.github.dagnelies.filemap;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a region of a file through its own channel, using positional reads.
+ * It does not interfere with the map's own file handle and can be consumed without holding the map's lock.
+ */
+class FileRegionInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private long pos;
+	private final long end;
+	
+	FileRegionInputStream(File file, long offset, long length) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.pos = offset;
+		this.end = offset + length;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : b[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if( pos >= end )
+			return -1;
+		len = (int) Math.min(len, end - pos);
+		int n = channel.read(ByteBuffer.wrap(b, off, len), pos);
+		if( n < 0 )
+			throw new EOFException("Unexpected end of file at " + pos + ", the map was probably cleared");
+		pos += n;
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) {
+		n = Math.max(0, Math.min(n, end - pos));
+		pos += n;
+		return n;
+	}
+	
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, end - pos);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
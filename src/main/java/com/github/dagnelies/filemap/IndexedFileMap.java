@@ -1,12 +1,34 @@
 package com.github.dagnelies.filemap;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
 
 /**
  * This thread safe hash map stores its key/values on disk.
@@ -32,38 +54,275 @@ metadata can enhance:
 
  ...it is possible to store {"t":timestamp,"p":offset,"v":value} to implement the feature
 at the cost of slightly more bytes per entry
+ ...this is done through the line metadata, like "key"	@{"t":timestamp,"p":offset}	value, see setVersioned()
 */
 public class IndexedFileMap<K,V>  extends AbstractFileMap<K,V> {
 
 	private Map<K,Long> offsets;
 	
+	// the amount of consecutive patches of the keys whose last line is a patch
+	private Map<K,Integer> patchDepths;
+	private int maxPatchChain = 16;
+	// the previous line of the patches written without its offset, like those written by a CachedFileMap
+	private Map<Long,Long> patchPrevious;
+	
+	// when versioned, each line stores its timestamp and the offset of the key's previous line
+	private boolean versioned;
+	// the last line of the removed or expired keys having a history
+	private Map<K,Long> removed;
+	// how much history is kept by compaction
+	private int retainedVersions = 1;
+	private long retentionMillis = 0;
+	
+	// the offsets in the file being compacted, used once it replaced the current one
+	private Map<K,Long> compactedOffsets;
+	private Map<K,Long> compactedRemoved;
+	
+	// lines further apart are read separately by getAll(), as well as groups of lines larger than the max read size
+	static final int MAX_READ_GAP = 64 * 1024;
+	static final int MAX_READ_SIZE = 1024 * 1024;
+	
 	public IndexedFileMap(File file, Class<K> keyType, Class<V> valueType) throws IOException {
 		super(file, keyType, valueType);
 	}
 	
+	/**
+	 * @param loadInBackground if true, returns immediately and loads the file in the background, see whenLoaded()
+	 */
+	public IndexedFileMap(File file, Class<K> keyType, Class<V> valueType, boolean loadInBackground) throws IOException {
+		super(file, keyType, valueType, loadInBackground);
+	}
+	
+	/**
+	 * Opens a map among others in the store's file, see FileMapStore.
+	 */
+	IndexedFileMap(FileMapStore store, String name, Class<K> keyType, Class<V> valueType) throws IOException {
+		super(store, name, keyType, valueType);
+	}
+	
 	@Override
 	protected void init() throws IOException {
 		offsets = new HashMap<>();
+		patchDepths = new HashMap<>();
+		patchPrevious = new HashMap<>();
+		removed = new HashMap<>();
+	}
+	
+	@Override
+	protected boolean loadsValues() {
+		return false;
+	}
+	
+	@Override
+	protected void loadEntry(long offset, K key, LineEntry entry) throws IOException {
+		Long previous = offsets.get(key);
+		if( getName() != null ) {
+			// the last line of a map in a store is only known once loaded, see beforeLoading()
+			versioned = isVersioned(entry);
+		}
+		if( loadExpiration(key, entry) ) {
+			offsets.put(key, offset);
+			removed.remove(key);
+		}
+		else {
+			offsets.remove(key);
+			if( entry.meta != null && entry.meta.timestamp != 0 )
+				removed.put(key, offset);
+			else
+				removed.remove(key);
+		}
+		
+		if( !offsets.containsKey(key) || !entry.isPatch() ) {
+			patchDepths.remove(key);
+		}
+		else if( entry.meta.previous == null ) {
+			if( previous != null )
+				patchPrevious.put(offset, previous);
+			patchDepths.put(key, patchDepths.getOrDefault(key, 0) + 1);
+		}
+		else {
+			patchDepths.put(key, entry.meta.depth);
+		}
+	}
+	
+	/**
+	 * The map stays versioned once reopened, as long as its last line was written so.
+	 * This is decided before loading, since writes are accepted while loading in the background.
+	 */
+	@Override
+	protected void beforeLoading(long end) throws IOException {
+		if( getName() == null )
+			versioned = isVersioned(readLastEntry(end));
+	}
+	
+	private boolean isVersioned(LineEntry entry) {
+		return entry != null && entry.meta != null && entry.meta.timestamp != 0;
+	}
+	
+	/**
+	 * Reads the last entry before the given end, skipping the blank and comment lines.
+	 */
+	private LineEntry readLastEntry(long end) throws IOException {
+		while( end > 0 ) {
+			long start = lineStart(end);
+			fileio.seek(start);
+			LineEntry entry = readEntry(false);
+			if( entry != null )
+				return entry;
+			end = start;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the offset of the line ending at the given end, by searching the previous newline backwards.
+	 */
+	private long lineStart(long end) throws IOException {
+		byte[] block = new byte[4096];
+		// the last byte is the line's own newline
+		long pos = end - 1;
+		while( pos > 0 ) {
+			int len = (int) Math.min(block.length, pos);
+			fileio.seek(pos - len);
+			InputStream in = fileio.substream(len);
+			for (int read = 0; read < len; ) {
+				int n = in.read(block, read, len - read);
+				if( n < 0 )
+					throw new EOFException("Unexpected end of file at " + (pos - len + read));
+				read += n;
+			}
+			for (int i = len - 1; i >= 0; i--) {
+				if( block[i] == '\n' )
+					return pos - len + i + 1;
+			}
+			pos -= len;
+		}
+		return 0;
+	}
+	
+	@Override
+	protected void evict(Object key) {
+		Long offset = offsets.remove(key);
+		patchDepths.remove(key);
+		if( versioned && offset != null )
+			removed.put(keyType.cast(key), offset);
+	}
+	
+	@Override
+	protected void flushed(K key, long offset) {
+		if( offsets.containsKey(key) )
+			offsets.put(key, offset);
 	}
 	
 	@Override
-	protected void loadEntry(long offset, String line) throws IOException {
-		K key = parseKey(line);
-		offsets.put(key, offset);
+	protected long copyLiveEntries(BufferedRandomAccessFile out) throws IOException {
+		long now = System.currentTimeMillis();
+		Map<K,Long> compacted = new HashMap<>();
+		Map<K,Long> compactedRemoved = new HashMap<>();
+		long count = 0;
+		
+		// copy the lines in file order, to read the file sequentially
+		List<Entry<K,Long>> sorted = new ArrayList<>(offsets.entrySet());
+		sorted.addAll(removed.entrySet());
+		sorted.sort(Entry.comparingByValue());
+		for( Entry<K,Long> entry : sorted ) {
+			K key = entry.getKey();
+			boolean live = offsets.containsKey(key) && !isExpired(key, now);
+			
+			fileio.seek(entry.getValue());
+			LineEntry line = readEntry(false);
+			if( line.meta != null && line.meta.timestamp != 0 ) {
+				count += copyHistory(key, entry.getValue(), line, now, out, live ? compacted : compactedRemoved, live);
+				continue;
+			}
+			
+			if( !live )
+				continue;
+			compacted.put(key, out.pos());
+			if( patchDepths.containsKey(key) ) {
+				// fold the patches into the value
+				V value = readValueAt(entry.getValue());
+				out.write(formatLine(key, value, getMetadata(key)));
+			}
+			else {
+				copyLine(entry.getValue(), out);
+			}
+			count++;
+		}
+		compactedOffsets = compacted;
+		this.compactedRemoved = compactedRemoved;
+		return count;
+	}
+	
+	@Override
+	protected void switchToCompacted() {
+		offsets = compactedOffsets;
+		removed = compactedRemoved;
+		compactedOffsets = null;
+		compactedRemoved = null;
+		patchDepths.clear();
+		patchPrevious.clear();
+	}
+	
+	/**
+	 * Copies the versions of the key kept by the retention policy, oldest first, with the patches folded.
+	 * The current value of live keys is always kept.
+	 * 
+	 * @param heads where to put the offset of the last version written
+	 * @return the amount of versions written
+	 */
+	private int copyHistory(K key, long offset, LineEntry line, long now, BufferedRandomAccessFile out, Map<K,Long> heads, boolean live) throws IOException {
+		List<Long> versions = new ArrayList<>();
+		List<LineEntry> lines = new ArrayList<>();
+		while( true ) {
+			boolean current = versions.isEmpty() && live;
+			boolean retained = versions.size() < retainedVersions && line.meta.timestamp >= now - retentionMillis;
+			if( !current && !retained )
+				break;
+			versions.add(offset);
+			lines.add(line);
+			if( line.meta.previous == null )
+				break;
+			offset = line.meta.previous;
+			fileio.seek(offset);
+			line = readEntry(false);
+			if( line.meta == null || line.meta.timestamp == 0 )
+				break; // written before the history was kept
+		}
+		
+		Long previous = null;
+		for (int i = versions.size() - 1; i >= 0; i--) {
+			LineEntry version = lines.get(i);
+			Metadata meta = new Metadata();
+			meta.timestamp = version.meta.timestamp;
+			meta.expires = version.meta.expires;
+			meta.previous = previous;
+			V value = version.isRemoval() ? null : readValueAt(versions.get(i));
+			previous = out.pos();
+			out.write(formatLine(key, value, meta));
+		}
+		if( previous != null )
+			heads.put(key, previous);
+		return versions.size();
 	}
 	
 	@Override
 	public synchronized int size() {
+		awaitLoaded();
 		return offsets.size();
 	}
 
 	@Override
 	public synchronized boolean isEmpty() {
+		awaitLoaded();
 		return offsets.isEmpty();
 	}
 
 	@Override
 	public synchronized boolean containsKey(Object key) {
+		awaitLoaded(key);
+		if( expireIfDue(key) )
+			return false;
 		return offsets.containsKey(key);
 	}
 
@@ -74,13 +333,268 @@ public class IndexedFileMap<K,V>  extends AbstractFileMap<K,V> {
 
 	@Override
 	public synchronized V get(Object key) {
-		if( !offsets.containsKey(key) )
+		awaitLoaded(key);
+		if( expireIfDue(key) || !offsets.containsKey(key) )
 			return null;
+		if( isPending(key) )
+			return getPending(key);
 		long offset = offsets.get(key);
 		try {
-			String line = super.readLine(offset);
-			V value = parseValue(line);
-			return value;
+			return readValueAt(offset);
+		}
+		catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private V readValueAt(long offset) throws IOException {
+		fileio.seek(offset);
+		LineEntry entry = readEntry(true);
+		if( !entry.isPatch() )
+			return readValue(entry);
+		
+		// walk back to the last full value, then apply the patches in order
+		Deque<JsonNode> patches = new ArrayDeque<>();
+		JsonNode value = null;
+		while( true ) {
+			patches.push(readTree(entry));
+			Long previous = (entry.meta.previous != null) ? entry.meta.previous : patchPrevious.get(offset);
+			if( previous == null )
+				break; // a patch of a missing value
+			offset = previous;
+			fileio.seek(offset);
+			entry = readEntry(true);
+			if( !entry.isPatch() ) {
+				value = readTree(entry);
+				break;
+			}
+		}
+		while( !patches.isEmpty() )
+			value = MergePatch.apply(value, patches.pop());
+		return mapper.treeToValue(value, valueType);
+	}
+	
+	/**
+	 * Gets the values of several keys at once. Missing keys are not part of the returned map.
+	 * The lines are read in file order, and nearby lines are read together in a single read.
+	 */
+	public Map<K,V> getAll(Collection<? extends K> keys) {
+		return getAll(keys, null);
+	}
+	
+	/**
+	 * Same as getAll(keys), but the reads are issued concurrently using the given executor.
+	 * The map's lock is only held while looking up the offsets, not while reading.
+	 */
+	public Map<K,V> getAll(Collection<? extends K> keys, Executor executor) {
+		List<Entry<K,Long>> found = new ArrayList<>(keys.size());
+		long readGeneration;
+		FileChannel channel;
+		synchronized(this) {
+			awaitLoaded();
+			flush();
+			for( K key : keys ) {
+				if( expireIfDue(key) )
+					continue;
+				Long offset = offsets.get(key);
+				if( offset != null )
+					found.add(new AbstractMap.SimpleImmutableEntry<>(key, offset));
+			}
+			readGeneration = generation;
+			try {
+				// since the lines at these offsets never change, they can be read without the lock
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			}
+			catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		found.sort(Entry.comparingByValue());
+		List<List<Entry<K,Long>>> groups = new ArrayList<>();
+		List<Entry<K,Long>> group = null;
+		for( Entry<K,Long> entry : found ) {
+			if( group == null
+					|| entry.getValue() - group.get(group.size() - 1).getValue() > MAX_READ_GAP
+					|| entry.getValue() - group.get(0).getValue() > MAX_READ_SIZE ) {
+				group = new ArrayList<>();
+				groups.add(group);
+			}
+			group.add(entry);
+		}
+		
+		Map<K,V> result = new HashMap<>();
+		try {
+			if( executor == null ) {
+				for( List<Entry<K,Long>> g : groups )
+					result.putAll(readGroup(channel, g));
+			}
+			else {
+				List<CompletableFuture<Map<K,V>>> futures = new ArrayList<>();
+				for( List<Entry<K,Long>> g : groups )
+					futures.add(CompletableFuture.supplyAsync(() -> readGroup(channel, g), executor));
+				for( CompletableFuture<Map<K,V>> future : futures )
+					result.putAll(future.join());
+			}
+		}
+		finally {
+			try {
+				channel.close();
+			}
+			catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		synchronized(this) {
+			if( readGeneration != generation ) {
+				// the file was cleared or compacted meanwhile, simply read again
+				result.clear();
+				for( Entry<K,Long> entry : found ) {
+					V value = get(entry.getKey());
+					if( value != null )
+						result.put(entry.getKey(), value);
+				}
+			}
+			else {
+				for( Entry<K,Long> entry : found ) {
+					if( result.get(entry.getKey()) == null ) {
+						try {
+							result.put(entry.getKey(), readValueAt(entry.getValue()));
+						}
+						catch(IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Reads the lines of a group of nearby offsets, sorted in file order, with a single read.
+	 */
+	private Map<K,V> readGroup(FileChannel channel, List<Entry<K,Long>> group) {
+		try {
+			long start = group.get(0).getValue();
+			long last = group.get(group.size() - 1).getValue();
+			
+			// read up to the end of the last line
+			ByteBuffer buffer = ByteBuffer.allocate((int) (last - start) + BufferedRandomAccessFile.DEFAULT_BUFFER_SIZE);
+			while( true ) {
+				int len = channel.read(buffer, start + buffer.position());
+				if( len < 0 || indexOf(buffer.array(), (int) (last - start), buffer.position(), (byte) '\n') >= 0 )
+					break;
+				if( !buffer.hasRemaining() ) {
+					ByteBuffer expanded = ByteBuffer.allocate(buffer.capacity() * 2);
+					buffer.flip();
+					expanded.put(buffer);
+					buffer = expanded;
+				}
+			}
+			
+			Map<K,V> values = new HashMap<>();
+			byte[] bytes = buffer.array();
+			for( Entry<K,Long> entry : group ) {
+				// the values left null are read again afterwards, under the lock
+				values.put(entry.getKey(), null);
+				int from = (int) (entry.getValue() - start);
+				int to = indexOf(bytes, from, buffer.position(), (byte) '\n');
+				if( to < 0 )
+					to = buffer.position();
+				if( to <= from )
+					continue; // the file was truncated meanwhile
+				try {
+					LineEntry line = new LineEntry(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+					if( !line.isPatch() )
+						values.put(entry.getKey(), mapper.readValue(line.getValueJson(), valueType));
+				}
+				catch(IOException | RuntimeException e) {
+					// the file was cleared and rewritten meanwhile, the generation check will tell
+				}
+			}
+			return values;
+		}
+		catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static int indexOf(byte[] bytes, int from, int to, byte b) {
+		for (int i = from; i < to; i++) {
+			if( bytes[i] == b )
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Copies the line at the given offset as is. Large values are copied chunk by chunk.
+	 */
+	private void copyLine(long offset, BufferedRandomAccessFile out) throws IOException {
+		fileio.seek(offset);
+		LineEntry entry = readEntry(false);
+		fileio.seek(offset);
+		InputStream in = fileio.substream(entry.end - offset);
+		byte[] chunk = new byte[BufferedRandomAccessFile.DEFAULT_BUFFER_SIZE];
+		int len;
+		byte last = 0;
+		while( (len = in.read(chunk, 0, chunk.length)) > 0 ) {
+			out.write(chunk, 0, len);
+			last = chunk[len - 1];
+		}
+		if( last != '\n' )
+			out.write((byte) '\n'); // the last line of the file might not be terminated
+	}
+	
+	/**
+	 * Returns the value's JSON as a stream, or null if there is no such key.
+	 * Large values are streamed from the file, without holding the map's lock, and are never copied as a whole in memory.
+	 * The stream should be closed after use.
+	 */
+	public InputStream getStream(Object key) {
+		LineEntry entry;
+		synchronized(this) {
+			awaitLoaded(key);
+			flush();
+			if( expireIfDue(key) || !offsets.containsKey(key) )
+				return null;
+			try {
+				fileio.seek(offsets.get(key));
+				entry = readEntry(true);
+				if( entry.isPatch() )
+					return new ByteArrayInputStream(mapper.writeValueAsBytes(readValueAt(offsets.get(key))));
+				if( entry.valueJson == null )
+					return new FileRegionInputStream(file, entry.valueOffset, entry.getLargeValueLength());
+			}
+			catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return new ByteArrayInputStream(entry.valueJson.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Same as getStream() but as a channel.
+	 */
+	public ReadableByteChannel getChannel(Object key) {
+		InputStream in = getStream(key);
+		if( in == null )
+			return null;
+		return Channels.newChannel(in);
+	}
+	
+	/**
+	 * Returns a streaming JSON parser over the value, or null if there is no such key.
+	 * This allows to process large values piece by piece instead of deserializing them as a whole.
+	 */
+	public JsonParser getParser(Object key) {
+		InputStream in = getStream(key);
+		if( in == null )
+			return null;
+		try {
+			return mapper.getFactory().createParser(in);
 		}
 		catch(IOException e) {
 			throw new RuntimeException(e);
@@ -89,27 +603,197 @@ public class IndexedFileMap<K,V>  extends AbstractFileMap<K,V> {
 
 	@Override
 	public synchronized V put(K key, V value) {
-		long offset = writeLine(key, value);
-		offsets.put(key, offset);
+		put(key, value, null);
+		return value;
+	}
+	
+	@Override
+	public synchronized V put(K key, V value, long ttl, TimeUnit unit) {
+		put(key, value, Metadata.expiringIn(ttl, unit));
 		return value;
 	}
+	
+	/**
+	 * Only the patch is appended to the file, along with the offset of the key's previous line.
+	 * Getting the value then requires to read the chain of patches back to the last full value.
+	 * The chain is limited by the max patch chain: once reached, the patched value is written as a whole.
+	 * When writing behind, the whole value is always written, so that it is coalesced with the other writes of the key.
+	 */
+	@Override
+	public synchronized void patch(K key, Object patch) {
+		JsonNode node = mapper.valueToTree(patch);
+		awaitLoaded(key);
+		if( expireIfDue(key) || !offsets.containsKey(key) || !node.isObject() || isWriteBehind() ) {
+			V patched = applyPatch(get(key), node);
+			if( patched == null )
+				remove(key);
+			else
+				put(key, patched, getMetadata(key));
+			return;
+		}
+		
+		int depth = patchDepths.getOrDefault(key, 0) + 1;
+		V patched = null;
+		if( depth > maxPatchChain || hasIndexes() ) {
+			patched = applyPatch(get(key), node);
+			if( depth > maxPatchChain ) {
+				put(key, patched, getMetadata(key));
+				return;
+			}
+		}
+		Metadata meta = version(key, getMetadataOrEmpty(key));
+		meta.previous = offsets.get(key);
+		meta.depth = depth;
+		offsets.put(key, writePatch(key, node, patched, meta));
+		patchDepths.put(key, depth);
+	}
+	
+	private void put(K key, V value, Metadata meta) {
+		offsets.put(key, writeLine(key, value, version(key, meta)));
+		patchDepths.remove(key);
+		removed.remove(key);
+	}
+	
+	/**
+	 * Adds the timestamp and the offset of the key's previous line to the metadata, if the history is kept.
+	 */
+	private Metadata version(Object key, Metadata meta) {
+		if( !versioned )
+			return meta;
+		// the previous line must be known
+		awaitLoaded(key);
+		if( meta == null )
+			meta = new Metadata();
+		meta.timestamp = System.currentTimeMillis();
+		meta.previous = lastOffset(key);
+		return meta;
+	}
+	
+	private Long lastOffset(Object key) {
+		Long offset = offsets.get(key);
+		return (offset != null) ? offset : removed.get(key);
+	}
+	
+	/**
+	 * Changes the maximum amount of consecutive patches of a key, 16 by default.
+	 * Longer chains make the file smaller but reading the value slower.
+	 */
+	public synchronized void setMaxPatchChain(int maxPatchChain) {
+		this.maxPatchChain = maxPatchChain;
+	}
 
 	@Override
 	public synchronized V remove(Object key) {
-		writeLine((K) key, null);
+		K removedKey = (K) key;
+		long offset = writeLine(removedKey, null, version(key, null));
 		offsets.remove(key);
+		patchDepths.remove(key);
+		if( versioned )
+			removed.put(removedKey, offset);
 		return null;
 	}
 	
+	/**
+	 * Keeps the history of the keys from now on: each line then stores its timestamp and the offset of the key's previous line.
+	 * This costs a few more bytes per line, and allows to read past values with getAsOf() and history().
+	 * Note that compaction drops the history unless a retention is set.
+	 * The setting is not stored as such: when the file is opened again, the map is versioned if its last line has a timestamp.
+	 */
+	public synchronized void setVersioned(boolean versioned) {
+		// otherwise, the lines still to be loaded would decide
+		awaitLoaded();
+		// the pending lines must be written before, to be pointed to
+		flush();
+		this.versioned = versioned;
+	}
+	
+	/**
+	 * Sets how much history is kept by compaction: up to the given amount of versions per key
+	 * (including the current one) as long as they are not older than the given age.
+	 * By default, only the current value is kept.
+	 */
+	public synchronized void setHistoryRetention(int versions, long maxAge, TimeUnit unit) {
+		this.retainedVersions = versions;
+		this.retentionMillis = unit.toMillis(maxAge);
+	}
+	
+	/**
+	 * Returns the value the key had at the given time, or null if it did not exist or is before its known history.
+	 * Only the key's own lines are read, following their back pointers.
+	 */
+	public synchronized V getAsOf(Object key, long time) {
+		awaitLoaded(key);
+		flush();
+		Long offset = lastOffset(key);
+		try {
+			while( offset != null ) {
+				fileio.seek(offset);
+				LineEntry entry = readEntry(false);
+				if( entry.meta == null || entry.meta.timestamp == 0 )
+					return null; // written before the history was kept
+				if( entry.meta.timestamp <= time ) {
+					if( entry.isRemoval() || (entry.getExpires() != 0 && entry.getExpires() <= time) )
+						return null;
+					return readValueAt(offset);
+				}
+				offset = entry.meta.previous;
+			}
+			return null;
+		}
+		catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Returns the known versions of the key, most recent first. Removals are versions without value.
+	 */
+	public synchronized List<Version<V>> history(Object key) {
+		awaitLoaded(key);
+		flush();
+		List<Version<V>> versions = new ArrayList<>();
+		Long offset = lastOffset(key);
+		try {
+			while( offset != null ) {
+				fileio.seek(offset);
+				LineEntry entry = readEntry(false);
+				if( entry.meta == null || entry.meta.timestamp == 0 )
+					break; // written before the history was kept
+				V value = entry.isRemoval() ? null : readValueAt(offset);
+				versions.add(new Version<>(entry.meta.timestamp, value));
+				offset = entry.meta.previous;
+			}
+			return versions;
+		}
+		catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	
 	@Override
 	public synchronized void clear() {
 		super.clearLines();
 		offsets.clear();
+		patchDepths.clear();
+		patchPrevious.clear();
+		removed.clear();
 	}
 
+	/**
+	 * Reads the matching entries at once, in file order.
+	 */
+	@Override
+	public Map<K,V> findEntries(String index, Object value) {
+		return getAll(findKeys(index, value));
+	}
+	
+	/**
+	 * Returns a live view of the keys. Iterating it while other threads modify the map is unsafe, use snapshot() for this purpose.
+	 */
 	@Override
 	public synchronized Set<K> keySet() {
+		awaitLoaded();
 		return offsets.keySet();
 	}
 
@@ -124,11 +808,100 @@ public class IndexedFileMap<K,V>  extends AbstractFileMap<K,V> {
 		throw new RuntimeException("This operation is not supported for this kind of map.");
 	}
 
+	/**
+	 * Copies the keys along with their offsets. The values are read lazily from the file, in file order when iterating.
+	 * Since the file is append only, the lines at these offsets stay unchanged while the map is being modified.
+	 */
+	@Override
+	public synchronized Snapshot<K, V> snapshot() {
+		awaitLoaded();
+		flush();
+		return new Snapshot<>(diskSize(), new SnapshotView(new HashMap<>(offsets), generation));
+	}
+	
+	private synchronized V readValue(long offset, long snapshotGeneration) {
+		if( snapshotGeneration != generation )
+			throw new ConcurrentModificationException("The map was cleared after the snapshot was taken");
+		try {
+			return readValueAt(offset);
+		}
+		catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private class SnapshotView extends AbstractMap<K,V> {
+		
+		final Map<K,Long> offsets;
+		final long generation;
+		
+		SnapshotView(Map<K,Long> offsets, long generation) {
+			this.offsets = offsets;
+			this.generation = generation;
+		}
+		
+		@Override
+		public int size() {
+			return offsets.size();
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return offsets.containsKey(key);
+		}
+		
+		@Override
+		public V get(Object key) {
+			Long offset = offsets.get(key);
+			if( offset == null )
+				return null;
+			return readValue(offset, generation);
+		}
+		
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			return new AbstractSet<Entry<K,V>>() {
+				
+				@Override
+				public int size() {
+					return offsets.size();
+				}
+				
+				@Override
+				public Iterator<Entry<K, V>> iterator() {
+					// reading in file order avoids jumping back and forth in the file
+					List<Entry<K,Long>> sorted = new ArrayList<>(offsets.entrySet());
+					sorted.sort(Entry.comparingByValue());
+					Iterator<Entry<K,Long>> it = sorted.iterator();
+					
+					return new Iterator<Entry<K,V>>() {
+
+						@Override
+						public boolean hasNext() {
+							return it.hasNext();
+						}
+
+						@Override
+						public Entry<K, V> next() {
+							Entry<K,Long> next = it.next();
+							V value = readValue(next.getValue(), generation);
+							return new AbstractMap.SimpleImmutableEntry<>(next.getKey(), value);
+						}
+					};
+				}
+			};
+		}
+	}
+	
 	public Iterable<LineEntry> entries() {
 		return new Iterable<LineEntry>() {
 
 			@Override
 			public Iterator<LineEntry> iterator() {
+				synchronized(IndexedFileMap.this) {
+					awaitLoaded();
+					flush();
+				}
 				try {
 					fileio.seek(0);
 				} catch (IOException e1) {
@@ -152,11 +925,21 @@ public class IndexedFileMap<K,V>  extends AbstractFileMap<K,V> {
 								if( line == null ||  line.isEmpty() || line.startsWith("#") )
 									continue;
 								
-								K key = parseKey(line);
-								if(offsets.get(key) != offset)
-									continue; // obsolete entry
+								LineEntry entry = new LineEntry(line);
+								if( !isOwnLine(entry) )
+									continue; // belongs to another map of the store
+								K key = mapper.readValue(entry.getKeyJson(), keyType);
+								Long current = offsets.get(key);
+								if( current == null || current != offset )
+									continue; // obsolete, removed or expired entry
 								
-								return new LineEntry(line); // could be slightly improved since key is parsed twice
+								if( entry.isPatch() ) {
+									long pos = fileio.pos();
+									V value = readValueAt(offset);
+									fileio.seek(pos);
+									entry = new LineEntry(entry.keyJson, null, mapper.writeValueAsString(value), false);
+								}
+								return entry;
 							}
 							return null; // EOF
 						} catch (IOException e) {
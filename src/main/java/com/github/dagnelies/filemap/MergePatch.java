@@ -0,0 +1,40 @@
+package com.github.dagnelies.filemap;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Applies JSON merge patches, as defined by RFC 7386.
+ * 
+ * A patch is an object whose fields replace the target's fields, recursively.
+ * A null field removes the field from the target. Any other kind of patch replaces the target as a whole.
+ */
+class MergePatch {
+
+	/**
+	 * Returns the patched target. The target itself is left unchanged.
+	 */
+	static JsonNode apply(JsonNode target, JsonNode patch) {
+		if( !patch.isObject() )
+			return patch;
+		
+		ObjectNode result;
+		if( target != null && target.isObject() )
+			result = ((ObjectNode) target).deepCopy();
+		else
+			result = AbstractFileMap.mapper.createObjectNode();
+		
+		Iterator<Map.Entry<String, JsonNode>> fields = patch.fields();
+		while( fields.hasNext() ) {
+			Map.Entry<String, JsonNode> field = fields.next();
+			if( field.getValue().isNull() )
+				result.remove(field.getKey());
+			else
+				result.set(field.getKey(), apply(result.get(field.getKey()), field.getValue()));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,73 @@
+package com.github.dagnelies.filemap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Optional metadata of an entry. When present, it is stored between the key and the value, prefixed by '@':
+ * 
+ * 	"my-key"	@{"e":1600000000000}	"my-value"
+ * 
+ * Since a JSON value never starts with '@', lines with and without metadata can be told apart.
+ * Field names are kept to a single letter since they are repeated on every line.
+ */
+@JsonInclude(JsonInclude.Include.NON_DEFAULT)
+@JsonIgnoreProperties(ignoreUnknown = true)
+class Metadata {
+	
+	// expiration time, in milliseconds since epoch, or 0 if the entry never expires
+	@JsonProperty("e")
+	long expires;
+	
+	// the value's length in bytes, only stored for large values so that they can be skipped or streamed
+	@JsonProperty("l")
+	long length;
+	
+	// whether the value is a merge patch to apply on the key's previous value
+	@JsonProperty("m")
+	boolean patch;
+	
+	// the offset of the key's previous line, if tracked
+	@JsonProperty("p")
+	Long previous;
+	
+	// the time the line was written, in milliseconds since epoch, only stored when the history is kept
+	@JsonProperty("t")
+	long timestamp;
+	
+	// the amount of consecutive patches up to this line
+	@JsonProperty("d")
+	int depth;
+	
+	// the name of the map the line belongs to, when several maps share the file, see FileMapStore
+	@JsonProperty("c")
+	String map;
+	
+	Metadata() {
+	}
+	
+	static Metadata expiringIn(long ttl, TimeUnit unit) {
+		Metadata meta = new Metadata();
+		meta.expires = System.currentTimeMillis() + unit.toMillis(ttl);
+		return meta;
+	}
+	
+	static Metadata parse(String json) throws IOException {
+		return AbstractFileMap.mapper.readValue(json, Metadata.class);
+	}
+	
+	boolean isEmpty() {
+		return expires == 0 && length == 0 && !patch && previous == null && timestamp == 0 && depth == 0 && map == null;
+	}
+	
+	/**
+	 * Whether the expiration time is past, 0 meaning that it never expires.
+	 */
+	static boolean isExpired(long expires, long now) {
+		return expires != 0 && expires <= now;
+	}
+}
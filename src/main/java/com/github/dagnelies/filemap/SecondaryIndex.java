@@ -0,0 +1,91 @@
+package com.github.dagnelies.filemap;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * An in-memory index of the keys by some property of their value.
+ * It is maintained by the map on each modification and is not persisted.
+ * 
+ * This class is not thread safe, it is meant to be used under the map's lock.
+ * 
+ * @param <K>
+ * @param <V>
+ */
+class SecondaryIndex<K,V> {
+
+	private final Function<? super V, ?> extractor;
+	private final boolean json;
+	
+	private final Map<Object, Set<K>> keysByProperty = new HashMap<>();
+	// the indexed property of each key, in order to remove it without reading the old value
+	private final Map<K, Object> propertyByKey = new HashMap<>();
+	
+	private SecondaryIndex(Function<? super V, ?> extractor, boolean json) {
+		this.extractor = extractor;
+		this.json = json;
+	}
+	
+	static <K,V> SecondaryIndex<K,V> of(Function<? super V, ?> extractor) {
+		return new SecondaryIndex<>(extractor, false);
+	}
+	
+	static <K,V> SecondaryIndex<K,V> of(JsonPointer pointer) {
+		return new SecondaryIndex<K,V>(value -> normalize(AbstractFileMap.mapper.valueToTree(value).at(pointer)), true);
+	}
+	
+	/**
+	 * Converts JSON nodes into plain values, so that 1 and 1.0, or an int and a long, are considered equal.
+	 */
+	private static Object normalize(JsonNode node) {
+		if( node == null || node.isMissingNode() || node.isNull() )
+			return null;
+		if( node.isTextual() )
+			return node.textValue();
+		if( node.isNumber() )
+			return node.decimalValue().stripTrailingZeros();
+		if( node.isBoolean() )
+			return node.booleanValue();
+		return node.toString();
+	}
+	
+	void put(K key, V value) {
+		remove(key);
+		Object property = extractor.apply(value);
+		if( property == null )
+			return;
+		propertyByKey.put(key, property);
+		keysByProperty.computeIfAbsent(property, p -> new HashSet<>()).add(key);
+	}
+	
+	void remove(Object key) {
+		Object property = propertyByKey.remove(key);
+		if( property == null )
+			return;
+		Set<K> keys = keysByProperty.get(property);
+		keys.remove(key);
+		if( keys.isEmpty() )
+			keysByProperty.remove(property);
+	}
+	
+	Set<K> get(Object property) {
+		if( json )
+			property = normalize(AbstractFileMap.mapper.valueToTree(property));
+		Set<K> keys = keysByProperty.get(property);
+		if( keys == null )
+			return Collections.emptySet();
+		return keys;
+	}
+	
+	void clear() {
+		keysByProperty.clear();
+		propertyByKey.clear();
+	}
+}
@@ -0,0 +1,56 @@
+package com.github.dagnelies.filemap;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, point-in-time view of a FileMap.
+ * Since the file works like a log, every entry of the snapshot stays at its position in the file
+ * and the snapshot can be iterated while the map keeps being modified by other threads.
+ * 
+ * Note that clearing the map invalidates the snapshots taken before,
+ * reading from them afterwards will throw a ConcurrentModificationException.
+ * 
+ * @param <K>
+ * @param <V>
+ */
+public class Snapshot<K,V> extends AbstractMap<K,V> {
+
+	private final long position;
+	private final Map<K,V> entries;
+	
+	Snapshot(long position, Map<K,V> entries) {
+		this.position = position;
+		this.entries = Collections.unmodifiableMap(entries);
+	}
+	
+	/**
+	 * The log position (file length) at the time this snapshot was taken.
+	 * Everything written after this position is not part of the snapshot.
+	 */
+	public long getPosition() {
+		return position;
+	}
+	
+	@Override
+	public int size() {
+		return entries.size();
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		return entries.containsKey(key);
+	}
+	
+	@Override
+	public V get(Object key) {
+		return entries.get(key);
+	}
+	
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return entries.entrySet();
+	}
+}
@@ -0,0 +1,70 @@
+package com.github.dagnelies.filemap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timer wheel, used to find expired keys without scanning all of them.
+ * 
+ * Each deadline is put in the slot of its tick. Advancing the wheel only visits the slots of the elapsed ticks,
+ * where deadlines further away than one full round are simply left for a later round.
+ * 
+ * This class is not thread safe, it is meant to be used under the map's lock.
+ * Deadlines are never cancelled: the caller is expected to check whether the returned keys really expired.
+ * 
+ * @param <K>
+ */
+class TimerWheel<K> {
+
+	private final long tickMillis;
+	private final List<Map<K,Long>> slots;
+	
+	// the last tick which was processed
+	private long tick;
+	
+	TimerWheel(long tickMillis, int size, long now) {
+		this.tickMillis = tickMillis;
+		this.slots = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			slots.add(new HashMap<>());
+		this.tick = now / tickMillis - 1;
+	}
+	
+	void schedule(K key, long deadline) {
+		long t = Math.max(deadline / tickMillis, tick + 1);
+		slots.get((int) (t % slots.size())).put(key, deadline);
+	}
+	
+	/**
+	 * Advances the wheel up to "now" and returns the keys whose deadline was reached.
+	 * Only the fully elapsed ticks are processed, so keys are returned at most one tick late.
+	 */
+	List<K> advance(long now) {
+		List<K> due = new ArrayList<>();
+		long target = now / tickMillis - 1;
+		
+		// no need to go around the wheel more than once
+		long from = Math.max(tick + 1, target - slots.size() + 1);
+		for (long t = from; t <= target; t++) {
+			Iterator<Map.Entry<K,Long>> it = slots.get((int) (t % slots.size())).entrySet().iterator();
+			while( it.hasNext() ) {
+				Map.Entry<K,Long> entry = it.next();
+				if( entry.getValue() <= now ) {
+					due.add(entry.getKey());
+					it.remove();
+				}
+			}
+		}
+		if( target > tick )
+			tick = target;
+		return due;
+	}
+	
+	void clear() {
+		for( Map<K,Long> slot : slots )
+			slot.clear();
+	}
+}
@@ -0,0 +1,40 @@
+package com.github.dagnelies.filemap;
+
+/**
+ * A past value of a key, as returned by IndexedFileMap.history().
+ * 
+ * @param <V>
+ */
+public class Version<V> {
+
+	private final long timestamp;
+	private final V value;
+	
+	Version(long timestamp, V value) {
+		this.timestamp = timestamp;
+		this.value = value;
+	}
+	
+	/**
+	 * The time it was written, in milliseconds since epoch.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	/**
+	 * The value, or null if the key was removed at that time.
+	 */
+	public V getValue() {
+		return value;
+	}
+	
+	public boolean isRemoval() {
+		return value == null;
+	}
+	
+	@Override
+	public String toString() {
+		return timestamp + "=" + value;
+	}
+}
@@ -3,8 +3,12 @@ package com.github.dagnelies.filemap;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
+import static org.junit.jupiter.api.Assertions.*;
+
 import org.junit.jupiter.api.Test;
 
 public class BufferedRandomAccessFileTest {
@@ -60,5 +64,68 @@ public class BufferedRandomAccessFileTest {
 		System.out.println("Reading line 1234 at pos " + pos_1234 + ": " + bf.readLine());
 		bf.close();
 	}
+	
+	@Test
+	public void testLongLines() throws IOException {
+		BufferedRandomAccessFile bf = new BufferedRandomAccessFile(new File("temp/this-is-a-long-test.txt"), "rw");
+		bf.truncate(0);
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000 * 1000; i++)
+			sb.append((char) ('a' + i % 26));
+		String longLine = sb.toString();
+		
+		bf.write("short\n" + longLine + "\n" + "short again\n" + longLine);
+		bf.seek(0);
+		assertEquals("short", bf.readLine());
+		assertEquals(longLine, bf.readLine());
+		assertEquals("short again", bf.readLine());
+		assertEquals(longLine, bf.readLine());
+		assertTrue(bf.isEOF());
+		
+		// peek, skip and substream
+		bf.seek(0);
+		assertEquals('s', bf.peek());
+		bf.skip(6);
+		assertEquals(6, bf.pos());
+		InputStream in = bf.substream(longLine.length());
+		byte[] bytes = new byte[longLine.length()];
+		int pos = 0, len;
+		while( (len = in.read(bytes, pos, bytes.length - pos)) > 0 )
+			pos += len;
+		assertEquals(longLine, new String(bytes, StandardCharsets.UTF_8));
+		assertEquals(-1, in.read());
+		bf.skip(1);
+		assertEquals("short again", bf.readLine());
+		bf.close();
+	}
+	
+	@Test
+	public void testSeekThenWrite() throws IOException {
+		BufferedRandomAccessFile bf = new BufferedRandomAccessFile(new File("temp/this-is-a-seek-test.txt"), "rw");
+		bf.truncate(0);
+		bf.write("line1\nline2\nline3\n");
+		
+		// the position was buffered by the read, the write must still happen there
+		bf.seek(0);
+		assertEquals("line1", bf.readLine());
+		bf.seek(6);
+		bf.write("XXXXX");
+		assertEquals(11, bf.pos());
+		
+		// same without seeking
+		bf.seek(0);
+		assertEquals("line1", bf.readLine());
+		assertEquals("XXXXX", bf.readLine());
+		bf.write("YYYYY");
+		
+		bf.seek(0);
+		assertEquals("line1", bf.readLine());
+		assertEquals("XXXXX", bf.readLine());
+		assertEquals("YYYYY", bf.readLine());
+		assertTrue(bf.isEOF());
+		assertEquals(18, bf.length());
+		bf.close();
+	}
 
 }
@@ -1,44 +1,206 @@
 package com.github.dagnelies.filemap;
 
 
+import static com.github.dagnelies.filemap.TestFiles.newFile;
+import static org.junit.jupiter.api.Assertions.*;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.junit.jupiter.api.Test;
 
 public class CachedFileMapTest {
 
-	public static void main(String[] args) throws IOException, InterruptedException {
-		long t = System.currentTimeMillis();
-		File file = new File("this-is-a-test.jkv");
-		if( file.exists() )
-			file.delete();
-		
-		Map<String, String> map = new CachedFileMap<>(file, String.class, String.class);
-		
-		//Map<String, String> map = new HashMap<>();
-		System.out.println("Created");
-		System.out.println(map.get("something"));
-		System.out.println("Size: " + map.size());
-		System.out.println("Reads: " + map.size() / (System.currentTimeMillis() - t + 1) + "k t/s");
-		
-		map.put("something", "here");
-		t = System.currentTimeMillis() + 1000;
-		int size = map.size();
-		while(size < 1000 * 1000) {
-			if( System.currentTimeMillis() > t ) {
-				t += 1000;
-				int sizeNow = map.size();
-				System.out.println("Entries: " + sizeNow / 1000 + "k");
-				System.out.println("Writes: " + (sizeNow - size) / 1000 + "k t/s");
-				size = sizeNow;
-				//System.gc();
-				
-				System.out.println("Free memory (mb): " + (Runtime.getRuntime().freeMemory() / 1000 / 1000));
+	static CachedFileMap<String, String> newMap(String name) throws IOException {
+		return new CachedFileMap<>(newFile(name + ".jkv"), String.class, String.class);
+	}
+	
+	@Test
+	public void testExpiration() throws IOException, InterruptedException {
+		CachedFileMap<String, String> map = newMap("cached-ttl");
+		map.put("short", "lived", 500, TimeUnit.MILLISECONDS);
+		map.put("long", "lived", 1, TimeUnit.HOURS);
+		map.put("forever", "lived");
+		map.put("removed", "soon");
+		map.remove("removed");
+		assertEquals("lived", map.get("short"));
+		
+		Thread.sleep(600);
+		assertNull(map.get("short"));
+		assertEquals(2, map.size());
+		
+		// expired and removed entries are skipped when loading
+		map.put("short", "lived", 500, TimeUnit.MILLISECONDS);
+		map.close();
+		Thread.sleep(600);
+		map = new CachedFileMap<>(map.getFile(), String.class, String.class);
+		assertEquals(2, map.size());
+		assertEquals("lived", map.get("long"));
+		assertFalse(map.containsKey("removed"));
+		
+		// ...and dropped by compaction, while the TTLs are kept
+		map.compact();
+		assertEquals(0.0, map.getFragmentation(), 0.0);
+		map.close();
+		map = new CachedFileMap<>(map.getFile(), String.class, String.class);
+		assertEquals(2, map.size());
+		assertEquals("lived", map.get("long"));
+		map.close();
+	}
+	
+	@Test
+	public void testPatches() throws IOException {
+		File file = newFile("cached-patches.jkv");
+		@SuppressWarnings("unchecked")
+		Class<Map<String, Object>> type = (Class<Map<String, Object>>) (Class<?>) Map.class;
+		CachedFileMap<String, Map<String, Object>> map = new CachedFileMap<>(file, String.class, type);
+		map.put("doc", Collections.singletonMap("title", "Hello"));
+		map.patch("doc", Collections.singletonMap("body", "World"));
+		map.patch("doc", Collections.singletonMap("title", null));
+		assertEquals(Collections.singletonMap("body", "World"), map.get("doc"));
+		
+		map.close();
+		map = new CachedFileMap<>(file, String.class, type);
+		assertEquals(Collections.singletonMap("body", "World"), map.get("doc"));
+		map.close();
+	}
+	
+	@Test
+	public void testSweeper() throws IOException, InterruptedException {
+		CachedFileMap<String, String> map = newMap("cached-sweep");
+		for (int i = 0; i < 100; i++)
+			map.put("key-" + i, "value", 10, TimeUnit.MILLISECONDS);
+		assertEquals(100, map.size());
+		Thread.sleep(2500);
+		// evicted by the sweeper, without being accessed
+		assertEquals(0, map.size());
+		map.close();
+	}
+
+	@Test
+	public void testWriteBehind() throws IOException, InterruptedException {
+		CachedFileMap<String, String> map = newMap("cached-write-behind");
+		map.setWriteBehind(200, TimeUnit.MILLISECONDS, 1000);
+		for (int i = 0; i < 1000; i++)
+			map.put("counter", "" + i);
+		assertEquals("999", map.get("counter"));
+		assertEquals(0, map.diskSize());
+		
+		// flushed after the delay, as a single line
+		Thread.sleep(600);
+		assertEquals(1, map.getEntriesWritten());
+		
+		map.put("counter", "1000");
+		
+		// the pending writes are flushed by a snapshot, whose position then includes them
+		Snapshot<String, String> snapshot = map.snapshot();
+		assertEquals("1000", snapshot.get("counter"));
+		assertEquals(map.diskSize(), snapshot.getPosition());
+		assertEquals(2, map.getEntriesWritten());
+		map.close();
+		map = new CachedFileMap<>(map.getFile(), String.class, String.class);
+		assertEquals("1000", map.get("counter"));
+		map.close();
+	}
+	
+	@Test
+	public void testFailedFlush() throws IOException, InterruptedException {
+		File file = newFile("cached-failed-flush.jkv");
+		AtomicInteger failures = new AtomicInteger(1);
+		CachedFileMap<String, String> map = new CachedFileMap<String, String>(file, String.class, String.class) {
+			@Override
+			protected long writeRecord(String key, Object value, Metadata meta) {
+				if( !key.equals("a") && failures.getAndDecrement() > 0 )
+					throw new RuntimeException("disk full");
+				return super.writeRecord(key, value, meta);
 			}
-			map.put(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+		};
+		map.setWriteBehind(1, TimeUnit.HOURS, 1000);
+		map.put("a", "1");
+		map.put("b", "2");
+		map.put("c", "3");
+		
+		// the writes not appended yet stay buffered
+		assertThrows(RuntimeException.class, () -> map.flush());
+		assertFalse(map.isPending("a"));
+		assertTrue(map.isPending("b"));
+		assertTrue(map.isPending("c"));
+		
+		map.flush();
+		assertFalse(map.isPending("b"));
+		assertFalse(map.isPending("c"));
+		
+		// the periodic flush goes on after failures
+		map.setWriteBehind(50, TimeUnit.MILLISECONDS, 1000);
+		failures.set(2);
+		map.put("d", "4");
+		Thread.sleep(500);
+		assertTrue(failures.get() < 0);
+		assertFalse(map.isPending("d"));
+		map.close();
+		
+		CachedFileMap<String, String> reopened = new CachedFileMap<>(file, String.class, String.class);
+		assertEquals(4, reopened.size());
+		assertEquals("2", reopened.get("b"));
+		reopened.close();
+	}
+	
+	@Test
+	public void testBackgroundLoading() throws IOException {
+		CachedFileMap<String, String> map = newMap("cached-background");
+		for (int i = 0; i < 20000; i++)
+			map.put("key-" + i, "old");
+		for (int i = 0; i < 20000; i++)
+			map.put("key-" + i, "new");
+		map.close();
+		
+		map = new CachedFileMap<>(map.getFile(), String.class, String.class, true);
+		// while loading, the older line may have been loaded but not yet the newer one
+		String previous = map.put("key-19999", "updated");
+		assertTrue(previous == null || previous.equals("new"));
+		assertEquals("updated", map.put("key-19999", "again"));
+		assertEquals("again", map.remove("key-19999"));
+		
+		map.whenLoaded().join();
+		assertEquals("new", map.put("key-0", "updated"));
+		assertEquals(19999, map.size());
+		map.close();
+	}
+	
+	@Test
+	public void testWritesWhileLoading() throws IOException, InterruptedException {
+		CachedFileMap<String, String> map = newMap("cached-background-writes");
+		for (int i = 0; i < 100000; i++)
+			map.put("key-" + i, "value-" + i);
+		map.close();
+		
+		// the loader must let writers in between its batches, instead of taking the lock again right away
+		map = new CachedFileMap<>(map.getFile(), String.class, String.class, true);
+		int writes = 0;
+		int writesWhileLoading = 0;
+		while( !map.isLoaded() ) {
+			map.put("written-" + writes++, "value");
+			if( !map.isLoaded() )
+				writesWhileLoading++;
+			Thread.sleep(1);
 		}
-		map.put("something", "changed");
+		assertTrue(writesWhileLoading > 0, "no write completed before the loading did");
+		assertEquals(100000 + writes, map.size());
+		map.close();
+	}
+	
+	/**
+	 * Runs the load generator against a CachedFileMap, see LoadGenerator for the available arguments.
+	 */
+	public static void main(String[] args) throws Exception {
+		String[] defaults = {"map=cached", "file=this-is-a-test.jkv"};
+		String[] all = Arrays.copyOf(defaults, defaults.length + args.length);
+		System.arraycopy(args, 0, all, defaults.length, args.length);
+		LoadGenerator.main(all);
 	}
 }
@@ -0,0 +1,94 @@
+package com.github.dagnelies.filemap;
+
+import static com.github.dagnelies.filemap.TestFiles.newFile;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class FileMapStoreTest {
+
+	static FileMapStore newStore(String name) throws IOException {
+		return new FileMapStore(newFile(name + ".jkv"));
+	}
+	
+	@Test
+	public void testSharedFile() throws IOException {
+		FileMapStore store = newStore("store-shared");
+		CachedFileMap<String, Integer> counts = store.openCached("counts", String.class, Integer.class);
+		IndexedFileMap<String, String> names = store.openIndexed("names", String.class, String.class);
+		assertThrows(IllegalArgumentException.class, () -> store.openCached("counts", String.class, String.class));
+		
+		// the same keys, with different types, in different maps
+		for (int i = 0; i < 100; i++) {
+			counts.put("key-" + i, i);
+			names.put("key-" + i, "name-" + i);
+		}
+		counts.remove("key-0");
+		store.sync();
+		assertEquals(counts.diskSize(), names.diskSize());
+		store.close();
+		
+		FileMapStore reopened = new FileMapStore(store.getFile());
+		counts = reopened.openCached("counts", String.class, Integer.class);
+		names = reopened.openIndexed("names", String.class, String.class);
+		assertEquals(99, counts.size());
+		assertEquals(100, names.size());
+		assertEquals(Integer.valueOf(42), counts.get("key-42"));
+		assertEquals("name-42", names.get("key-42"));
+		
+		// clearing a map does not affect the others
+		counts.clear();
+		assertEquals(0, counts.size());
+		assertEquals(100, names.size());
+		
+		// including the removals held by the write-behind buffer
+		names.setWriteBehind(1, TimeUnit.HOURS, 1000);
+		names.remove("key-1");
+		names.clear();
+		reopened.close();
+		
+		reopened = new FileMapStore(store.getFile());
+		assertEquals(0, reopened.openCached("counts", String.class, Integer.class).size());
+		names = reopened.openIndexed("names", String.class, String.class);
+		assertNull(names.get("key-1"));
+		assertEquals(0, names.size());
+		reopened.close();
+	}
+	
+	@Test
+	public void testCompaction() throws IOException {
+		FileMapStore store = newStore("store-compaction");
+		CachedFileMap<String, Integer> counts = store.openCached("counts", String.class, Integer.class);
+		IndexedFileMap<String, String> names = store.openIndexed("names", String.class, String.class);
+		IndexedFileMap<String, String> other = store.openIndexed("other", String.class, String.class);
+		other.put("kept", "value");
+		other.close();
+		
+		for (int i = 0; i < 1000; i++) {
+			counts.put("counter", i);
+			names.put("name-" + (i % 10), "value-" + i);
+		}
+		long before = names.diskSize();
+		
+		// compacting any map compacts the whole store
+		names.compact();
+		assertTrue(names.diskSize() < before / 10);
+		assertEquals(Integer.valueOf(999), counts.get("counter"));
+		assertEquals("value-999", names.get("name-9"));
+		assertEquals(0, names.getFragmentation(), 0.001);
+		
+		names.put("name-0", "updated");
+		store.close();
+		
+		store = new FileMapStore(store.getFile());
+		assertEquals("updated", store.openIndexed("names", String.class, String.class).get("name-0"));
+		assertEquals(Integer.valueOf(999), store.openCached("counts", String.class, Integer.class).get("counter"));
+		// the lines of maps which were not open are kept as they are
+		assertEquals("value", store.openIndexed("other", String.class, String.class).get("kept"));
+		store.close();
+	}
+}
@@ -1,14 +1,33 @@
 package com.github.dagnelies.filemap;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 
+import static com.github.dagnelies.filemap.TestFiles.newFile;
+import static org.junit.jupiter.api.Assertions.*;
+
 
 public class IndexedFileMapTest {
 
@@ -20,6 +39,478 @@ public class IndexedFileMapTest {
 		}
 	}
 	
+	public static class Person {
+		public String name;
+		public String city;
+		public long age;
+		
+		Person() {
+		}
+		
+		Person(String name, String city, long age) {
+			this.name = name;
+			this.city = city;
+			this.age = age;
+		}
+	}
+	
+	static IndexedFileMap<String, String> newMap(String name) throws IOException {
+		return new IndexedFileMap<>(newFile(name + ".jkv"), String.class, String.class);
+	}
+	
+	@Test
+	public void testSnapshot() throws IOException {
+		IndexedFileMap<String, String> map = newMap("indexed-snapshot");
+		for (int i = 0; i < 100; i++)
+			map.put("key-" + i, "value-" + i);
+		
+		Snapshot<String, String> snapshot = map.snapshot();
+		
+		// modifications after the snapshot, while iterating
+		int count = 0;
+		for( Map.Entry<String, String> entry : snapshot.entrySet() ) {
+			map.put(entry.getKey(), "changed");
+			map.remove("key-" + count);
+			map.put("new-" + count, "new");
+			assertEquals(entry.getKey().replace("key", "value"), entry.getValue());
+			count++;
+		}
+		assertEquals(100, count);
+		assertEquals(100, snapshot.size());
+		assertEquals("value-42", snapshot.get("key-42"));
+		assertNull(snapshot.get("new-0"));
+		assertNull(map.get("key-42"));
+		
+		map.clear();
+		assertThrows(java.util.ConcurrentModificationException.class, () -> snapshot.get("key-42"));
+		map.close();
+	}
+	
+	@Test
+	public void testLargeValues() throws IOException {
+		IndexedFileMap<String, String> map = newMap("indexed-large");
+		map.setLargeValueThreshold(1000);
+		
+		StringBuilder sb = new StringBuilder();
+		while( sb.length() < 1000 * 1000 )
+			sb.append("large \u00e9\u4e2d\t");
+		String large = sb.toString();
+		
+		map.put("small", "value");
+		map.put("large", large);
+		map.put("after", "value");
+		assertEquals(large, map.get("large"));
+		
+		// large values are skipped when loading
+		map.close();
+		map = new IndexedFileMap<>(map.getFile(), String.class, String.class);
+		assertEquals(3, map.size());
+		assertEquals(large, map.get("large"));
+		assertEquals("value", map.get("after"));
+		
+		// streamed
+		InputStream in = map.getStream("large");
+		assertEquals(large, AbstractFileMap.mapper.readValue(in, String.class));
+		in.close();
+		JsonParser parser = map.getParser("small");
+		assertEquals(JsonToken.VALUE_STRING, parser.nextToken());
+		assertEquals("value", parser.getText());
+		parser.close();
+		assertNull(map.getStream("missing"));
+		
+		// and copied on compaction
+		map.put("large", large + "!");
+		map.compact();
+		assertEquals(large + "!", map.get("large"));
+		assertEquals("value", map.get("small"));
+		map.close();
+	}
+	
+	@Test
+	public void testFailedCompaction() throws IOException {
+		File file = newFile("indexed-failed-compaction.jkv");
+		
+		IndexedFileMap<String,String> map = new IndexedFileMap<String,String>(file, String.class, String.class) {
+			@Override
+			protected long copyLiveEntries(BufferedRandomAccessFile out) throws IOException {
+				super.copyLiveEntries(out);
+				throw new IOException("disk full");
+			}
+		};
+		for( int i = 0; i < 100; i++ )
+			map.put("key-" + i, "value-" + i);
+		map.put("key-0", "updated");
+		
+		// the map keeps using the current file
+		assertThrows(IOException.class, () -> map.compact());
+		assertFalse(new File(file.getPath() + ".compacting").exists());
+		assertEquals("updated", map.get("key-0"));
+		assertEquals("value-99", map.get("key-99"));
+		map.put("key-100", "value-100");
+		map.close();
+		
+		IndexedFileMap<String,String> reopened = new IndexedFileMap<>(file, String.class, String.class);
+		assertEquals(101, reopened.size());
+		assertEquals("updated", reopened.get("key-0"));
+		reopened.close();
+	}
+	
+	@Test
+	public void testIndexes() throws IOException, InterruptedException {
+		File file = newFile("indexed-indexes.jkv");
+		IndexedFileMap<String, Person> map = new IndexedFileMap<>(file, String.class, Person.class);
+		map.put("alice", new Person("Alice", "Paris", 30));
+		map.put("bob", new Person("Bob", "Berlin", 40));
+		
+		// built from the existing entries
+		map.addIndex("city", p -> p.city);
+		map.addIndex("age", JsonPointer.compile("/age"));
+		assertEquals(Collections.singleton("alice"), map.findKeys("city", "Paris"));
+		assertEquals(Collections.singleton("bob"), map.findKeys("age", 40.0));
+		
+		// maintained on modifications
+		map.put("carol", new Person("Carol", "Paris", 40));
+		map.put("alice", new Person("Alice", "Berlin", 31));
+		map.remove("bob");
+		// expired entries are not found, even before being evicted
+		map.put("dave", new Person("Dave", "Paris", 50), 10, TimeUnit.MILLISECONDS);
+		Thread.sleep(20);
+		
+		assertEquals(Collections.singleton("carol"), map.findKeys("city", "Paris"));
+		assertEquals(Collections.singleton("alice"), map.findKeys("city", "Berlin"));
+		assertEquals(Collections.singleton("carol"), map.findKeys("age", 40));
+		assertEquals("Carol", map.findEntries("city", "Paris").get("carol").name);
+		assertTrue(map.findKeys("city", "Rome").isEmpty());
+		
+		// ...nor once compaction dropped them
+		map.put("erin", new Person("Erin", "Rome", 20), 10, TimeUnit.MILLISECONDS);
+		Thread.sleep(20);
+		map.compact();
+		assertTrue(map.findEntries("city", "Rome").isEmpty());
+		assertNull(map.get("erin"));
+		assertEquals(2, map.size());
+		
+		map.clear();
+		assertTrue(map.findKeys("city", "Paris").isEmpty());
+		map.close();
+	}
+	
+	@Test
+	public void testGetAll() throws IOException {
+		IndexedFileMap<String, String> map = newMap("indexed-getall");
+		map.setLargeValueThreshold(1000);
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 10000; i++) {
+			String key = UUID.randomUUID().toString();
+			map.put(key, i % 1000 == 0 ? String.join("", Collections.nCopies(10000, key)) : key);
+			keys.add(key);
+		}
+		Collections.shuffle(keys);
+		List<String> requested = new ArrayList<>(keys.subList(0, 5000));
+		requested.add("missing");
+		
+		Map<String, String> values = map.getAll(requested);
+		assertEquals(5000, values.size());
+		for( String key : requested.subList(0, 5000) )
+			assertEquals(map.get(key), values.get(key));
+		
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		assertEquals(values, map.getAll(requested, executor));
+		executor.shutdown();
+		map.close();
+	}
+	
+	@Test
+	public void testGetAllWhileClearing() throws IOException, InterruptedException {
+		IndexedFileMap<String, String> map = newMap("indexed-getall-clear");
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 50000; i++) {
+			map.put("key-" + i, "value-" + i);
+			keys.add("key-" + i);
+		}
+		
+		// the file is truncated and rewritten while the lines are being read without the lock
+		Thread clearing = new Thread(() -> {
+			for (int i = 0; i < 20; i++) {
+				map.clear();
+				for (int j = 0; j < 1000; j++)
+					map.put("key-" + j, "value-" + j);
+			}
+		});
+		clearing.start();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		while( clearing.isAlive() ) {
+			for( Map.Entry<String, String> entry : map.getAll(keys, executor).entrySet() )
+				assertEquals(entry.getKey().replace("key", "value"), entry.getValue());
+		}
+		executor.shutdown();
+		clearing.join();
+		map.close();
+	}
+	
+	@Test
+	public void testPatches() throws IOException {
+		File file = newFile("indexed-patches.jkv");
+		IndexedFileMap<String, Person> map = new IndexedFileMap<>(file, String.class, Person.class);
+		map.setMaxPatchChain(3);
+		map.put("alice", new Person("Alice", "Paris", 30));
+		map.put("bob", new Person("Bob", "Berlin", 40));
+		
+		long size = map.diskSize();
+		map.patch("alice", Collections.singletonMap("age", 31));
+		assertEquals(43, map.diskSize() - size); // only the patch was written
+		map.patch("alice", Collections.singletonMap("city", "Rome"));
+		assertEquals(31, map.get("alice").age);
+		assertEquals("Rome", map.get("alice").city);
+		assertEquals("Alice", map.get("alice").name);
+		
+		// resolved after loading, and by the other ways of reading
+		map.close();
+		map = new IndexedFileMap<>(file, String.class, Person.class);
+		assertEquals("Rome", map.get("alice").city);
+		assertEquals("Rome", map.getAll(Collections.singleton("alice")).get("alice").city);
+		assertEquals("Rome", map.snapshot().get("alice").city);
+		
+		// the chain is limited
+		map.patch("alice", Collections.singletonMap("age", 32));
+		map.patch("alice", Collections.singletonMap("age", 33));
+		map.patch("alice", Collections.singletonMap("age", 34));
+		assertEquals(34, map.get("alice").age);
+		
+		// patching a missing key creates it
+		map.patch("carol", Collections.singletonMap("name", "Carol"));
+		assertEquals("Carol", map.get("carol").name);
+		
+		// compaction folds the patches
+		map.compact();
+		map.close();
+		map = new IndexedFileMap<>(file, String.class, Person.class);
+		assertEquals(34, map.get("alice").age);
+		assertEquals("Rome", map.get("alice").city);
+		assertEquals(3, map.size());
+		map.close();
+	}
+	
+	@Test
+	public void testPatchesAcrossMapTypes() throws IOException {
+		File file = newFile("indexed-patches-cached.jkv");
+		CachedFileMap<String, Person> cached = new CachedFileMap<>(file, String.class, Person.class);
+		cached.put("alice", new Person("Alice", "Paris", 30));
+		cached.patch("alice", Collections.singletonMap("age", 31));
+		cached.patch("alice", Collections.singletonMap("city", "Rome"));
+		cached.close();
+		
+		// the patches written by a CachedFileMap have no back pointer
+		IndexedFileMap<String, Person> indexed = new IndexedFileMap<>(file, String.class, Person.class);
+		assertEquals(31, indexed.get("alice").age);
+		assertEquals("Rome", indexed.get("alice").city);
+		assertEquals("Rome", indexed.getAll(Collections.singleton("alice")).get("alice").city);
+		indexed.patch("alice", Collections.singletonMap("age", 32));
+		assertEquals("Rome", indexed.get("alice").city);
+		indexed.close();
+		
+		cached = new CachedFileMap<>(file, String.class, Person.class);
+		assertEquals(32, cached.get("alice").age);
+		assertEquals("Rome", cached.get("alice").city);
+		cached.close();
+		
+		indexed = new IndexedFileMap<>(file, String.class, Person.class);
+		indexed.compact();
+		assertEquals(32, indexed.get("alice").age);
+		assertEquals("Alice", indexed.get("alice").name);
+		indexed.close();
+	}
+	
+	@Test
+	public void testHistory() throws IOException, InterruptedException {
+		IndexedFileMap<String, String> map = newMap("indexed-history");
+		map.put("key", "unversioned");
+		map.setVersioned(true);
+		
+		long[] times = new long[4];
+		map.put("key", "v1");
+		times[0] = System.currentTimeMillis();
+		Thread.sleep(5);
+		map.put("other", "noise");
+		map.put("key", "v2");
+		times[1] = System.currentTimeMillis();
+		Thread.sleep(5);
+		map.remove("key");
+		times[2] = System.currentTimeMillis();
+		Thread.sleep(5);
+		map.put("key", "v3");
+		times[3] = System.currentTimeMillis();
+		
+		assertNull(map.getAsOf("key", times[0] - 1000));
+		assertEquals("v1", map.getAsOf("key", times[0]));
+		assertEquals("v2", map.getAsOf("key", times[1]));
+		assertNull(map.getAsOf("key", times[2]));
+		assertEquals("v3", map.getAsOf("key", times[3]));
+		
+		List<Version<String>> history = map.history("key");
+		assertEquals(4, history.size());
+		assertEquals("v3", history.get(0).getValue());
+		assertTrue(history.get(1).isRemoval());
+		assertEquals("v1", history.get(3).getValue());
+		
+		// kept after loading, including for removed keys
+		map.remove("other");
+		map.close();
+		map = new IndexedFileMap<>(map.getFile(), String.class, String.class);
+		assertEquals("v2", map.getAsOf("key", times[1]));
+		assertEquals(2, map.history("other").size());
+		
+		// compaction keeps the history according to the retention policy
+		map.setHistoryRetention(3, 1, TimeUnit.HOURS);
+		map.compact();
+		history = map.history("key");
+		assertEquals(3, history.size());
+		assertEquals("v3", history.get(0).getValue());
+		assertEquals("v2", history.get(2).getValue());
+		assertEquals("v3", map.get("key"));
+		assertEquals(2, map.history("other").size());
+		assertFalse(map.containsKey("other"));
+		
+		// by default, only the current values
+		map.setHistoryRetention(1, 0, TimeUnit.HOURS);
+		map.compact();
+		assertEquals(1, map.history("key").size());
+		assertEquals(0, map.history("other").size());
+		assertEquals(1, map.size());
+		map.close();
+		
+		// still versioned once reopened
+		map = new IndexedFileMap<>(map.getFile(), String.class, String.class);
+		map.put("key", "v4");
+		history = map.history("key");
+		assertEquals(2, history.size());
+		assertEquals("v3", history.get(1).getValue());
+		map.close();
+		
+		// including for the writes made while loading in the background
+		map = new IndexedFileMap<>(map.getFile(), String.class, String.class, true);
+		map.put("key", "v5");
+		assertEquals(3, map.history("key").size());
+		map.close();
+		map = new IndexedFileMap<>(map.getFile(), String.class, String.class);
+		map.put("key", "v6");
+		assertEquals(4, map.history("key").size());
+		map.close();
+	}
+	
+	@Test
+	public void testBackgroundLoading() throws IOException {
+		IndexedFileMap<String, String> map = newMap("indexed-background");
+		for (int i = 0; i < 20000; i++)
+			map.put("key-" + i, "value-" + i);
+		map.close();
+		
+		map = new IndexedFileMap<>(map.getFile(), String.class, String.class, true);
+		// written while loading: these win over the older lines and can be read right away
+		map.put("key-5", "updated");
+		map.remove("key-6");
+		map.put("new", "value");
+		assertEquals("updated", map.get("key-5"));
+		assertNull(map.get("key-6"));
+		
+		map.whenLoaded().join();
+		assertTrue(map.isLoaded());
+		assertEquals(20000, map.size());
+		assertEquals("updated", map.get("key-5"));
+		assertNull(map.get("key-6"));
+		assertEquals("value-7", map.get("key-7"));
+		map.close();
+		
+		map = new IndexedFileMap<>(map.getFile(), String.class, String.class, true);
+		// waits for the loading to complete
+		assertEquals("value-19999", map.get("key-19999"));
+		assertEquals(20000, map.size());
+		map.close();
+	}
+	
+	@Test
+	public void testWriteBehind() throws IOException {
+		IndexedFileMap<String, String> map = newMap("indexed-write-behind");
+		map.setWriteBehind(1, TimeUnit.HOURS, 100);
+		for (int i = 0; i < 1000; i++)
+			map.put("counter", "" + i);
+		map.put("other", "value");
+		map.remove("other");
+		
+		// the reads see the pending writes
+		assertEquals("999", map.get("counter"));
+		assertNull(map.get("other"));
+		assertEquals(1, map.size());
+		assertEquals(0, map.diskSize());
+		
+		map.flush();
+		assertEquals(2, map.getEntriesWritten());
+		assertEquals("999", map.get("counter"));
+		
+		// flushed whenever 100 keys are pending
+		for (int i = 0; i < 250; i++)
+			map.put("key-" + i, "value-" + i);
+		assertEquals(202, map.getEntriesWritten());
+		assertEquals("value-249", map.get("key-249"));
+		assertEquals("value-0", map.snapshot().get("key-0"));
+		
+		map.close();
+		map = new IndexedFileMap<>(map.getFile(), String.class, String.class);
+		assertEquals("999", map.get("counter"));
+		assertEquals("value-249", map.get("key-249"));
+		assertEquals(251, map.size());
+		map.close();
+	}
+	
+	@Test
+	public void testBackup() throws IOException {
+		IndexedFileMap<String, String> map = newMap("indexed-backup");
+		for (int i = 0; i < 100; i++) {
+			map.put("key-" + i, "old");
+			map.put("key-" + i, "value-" + i);
+		}
+		map.put("session", "value", 1, TimeUnit.HOURS);
+		
+		File target = newFile("indexed-backup.bak");
+		Checkpoint checkpoint = map.backup(target);
+		// compacted: only the live entries
+		assertEquals(101, Files.readAllLines(target.toPath()).size());
+		
+		map.put("key-0", "updated");
+		map.remove("key-1");
+		map.put("new", "value");
+		OutputStream out = new FileOutputStream(target, true);
+		try {
+			checkpoint = map.backup(out, checkpoint);
+		}
+		finally {
+			out.close();
+		}
+		assertEquals(104, Files.readAllLines(target.toPath()).size());
+		
+		IndexedFileMap<String, String> restored = new IndexedFileMap<>(target, String.class, String.class);
+		assertEquals(new HashMap<>(map.snapshot()), new HashMap<>(restored.snapshot()));
+		assertEquals(101, restored.size());
+		assertEquals("updated", restored.get("key-0"));
+		assertNull(restored.get("key-1"));
+		// the expiration is kept
+		assertEquals(map.getMetadata("session").expires, restored.getMetadata("session").expires);
+		restored.close();
+		
+		// the checkpoint is not valid anymore after compaction
+		map.compact();
+		Checkpoint outdated = checkpoint;
+		assertThrows(IllegalStateException.class, () -> map.backup(new ByteArrayOutputStream(), outdated));
+		
+		// a failed backup leaves nothing behind, here since a directory cannot be replaced
+		File directory = new File("temp/indexed-backup-directory");
+		directory.mkdirs();
+		new FileOutputStream(new File(directory, "content")).close();
+		assertThrows(IOException.class, () -> map.backup(directory));
+		assertFalse(new File(directory.getPath() + ".writing").exists());
+		map.close();
+	}
+	
 	public static<T> TypeReference<T> build2() {
 		return new TypeReference<T>() {};
 	}
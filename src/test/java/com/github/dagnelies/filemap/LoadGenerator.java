@@ -0,0 +1,365 @@
+package com.github.dagnelies.filemap;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A YCSB-like load generator, to measure throughput and tail latencies of a FileMap under a mixed workload.
+ *
+ * It first loads the map with all keys, then runs a mix of reads, writes, removals and scans from several threads.
+ * A scan reads scanLength consecutive keys starting from a random one, using getAll() when the map is an IndexedFileMap.
+ * Each second, the throughput, the p50/p99/p999 latencies of each operation, the disk size and the fragmentation are reported.
+ *
+ * Usage, with all arguments being optional:
+ *
+ * 	LoadGenerator map=indexed threads=8 duration=60 keys=100000 read=0.8 write=0.15 remove=0.03 scan=0.02 distribution=zipfian
+ *
+ * The value sizes are between valueMin and valueMax, either uniformly distributed or, with valueDistribution=zipfian, mostly small.
+ *
+ * The map can be "cached", "indexed" or the class name of any FileMap having a (File, Class, Class) constructor.
+ */
+public class LoadGenerator {
+
+	static final String[] OPERATIONS = {"read", "write", "remove", "scan"};
+	static final int READ = 0, WRITE = 1, REMOVE = 2, SCAN = 3;
+
+	public static class Workload {
+		public String map = "cached";
+		public String file = "temp/load-generator.jkv";
+		public int threads = 4;
+		// in seconds
+		public int duration = 30;
+		public int report = 1;
+		public int keys = 100 * 1000;
+		public double read = 0.5;
+		public double write = 0.4;
+		public double remove = 0.05;
+		public double scan = 0.05;
+		public int scanLength = 100;
+		// "zipfian" or "uniform"
+		public String distribution = "zipfian";
+		// value sizes are between both, "uniform" or "zipfian" for mostly small values
+		public int valueMin = 100;
+		public int valueMax = 1000;
+		public String valueDistribution = "uniform";
+
+		static Workload parse(String[] args) {
+			Map<String,String> props = new HashMap<>();
+			for( String arg : args ) {
+				int i = arg.indexOf('=');
+				if( i <= 0 )
+					throw new IllegalArgumentException("Arguments should be like key=value: " + arg);
+				props.put(arg.substring(0, i), arg.substring(i + 1));
+			}
+			return AbstractFileMap.mapper.convertValue(props, Workload.class);
+		}
+
+		void validate() {
+			if( threads <= 0 || duration <= 0 || report <= 0 || keys <= 0 || scanLength <= 0 )
+				throw new IllegalArgumentException("threads, duration, report, keys and scanLength must be positive");
+			if( valueMin < 0 || valueMax < valueMin )
+				throw new IllegalArgumentException("Expected 0 <= valueMin <= valueMax, got valueMin=" + valueMin + " and valueMax=" + valueMax);
+			if( read < 0 || write < 0 || remove < 0 || scan < 0 || read + write + remove + scan <= 0 )
+				throw new IllegalArgumentException("The operation ratios must not be negative, and at least one must be positive");
+			if( !"zipfian".equals(distribution) && !"uniform".equals(distribution) )
+				throw new IllegalArgumentException("Unknown distribution: " + distribution);
+			if( !"zipfian".equals(valueDistribution) && !"uniform".equals(valueDistribution) )
+				throw new IllegalArgumentException("Unknown value distribution: " + valueDistribution);
+		}
+
+		int nextOperation(Random random) {
+			double r = random.nextDouble() * (read + write + remove + scan);
+			if( (r -= read) < 0 )
+				return READ;
+			if( (r -= write) < 0 )
+				return WRITE;
+			if( (r -= remove) < 0 )
+				return REMOVE;
+			return SCAN;
+		}
+	}
+
+	/**
+	 * Generates integers in [0, n) following a Zipfian distribution, as described in
+	 * "Quickly Generating Billion-Record Synthetic Databases" by Gray et al.
+	 * The popular items are then scattered across the key space by hashing.
+	 */
+	static class ZipfianGenerator {
+
+		static final double THETA = 0.99;
+
+		final long n;
+		final double alpha, zetan, eta;
+
+		ZipfianGenerator(long n) {
+			this.n = n;
+			this.zetan = zeta(n);
+			this.alpha = 1.0 / (1.0 - THETA);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - THETA)) / (1 - zeta(2) / zetan);
+		}
+
+		static double zeta(long n) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++)
+				sum += 1 / Math.pow(i, THETA);
+			return sum;
+		}
+
+		long next(Random random) {
+			return scramble(nextRank(random)) % n;
+		}
+
+		// the most popular items first
+		long nextRank(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			long rank;
+			if( uz < 1.0 )
+				rank = 0;
+			else if( uz < 1.0 + Math.pow(0.5, THETA) )
+				rank = 1;
+			else
+				rank = (long) (n * Math.pow(eta * u - eta + 1, alpha));
+			return Math.min(rank, n - 1);
+		}
+
+		// FNV-1a hash of the rank
+		static long scramble(long value) {
+			long hash = 0xCBF29CE484222325L;
+			for (int i = 0; i < 8; i++) {
+				hash ^= value & 0xFF;
+				hash *= 0x100000001B3L;
+				value >>= 8;
+			}
+			return Math.abs(hash);
+		}
+	}
+
+	/**
+	 * A thread safe latency histogram with logarithmic buckets, each power of two being split in 32 sub-buckets.
+	 * This keeps the relative error of percentiles below ~3%, with a fixed amount of memory.
+	 */
+	static class Histogram {
+
+		static final int SUB_BUCKETS = 32;
+		static final int SUB_BITS = 5;
+
+		final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+		static int bucket(long nanos) {
+			if( nanos < SUB_BUCKETS )
+				return (int) Math.max(nanos, 0);
+			// the 6 most significant bits, between 32 and 63, are kept
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+			return exponent * SUB_BUCKETS + (int) (nanos >>> exponent);
+		}
+
+		static long upperBound(int bucket) {
+			if( bucket < SUB_BUCKETS )
+				return bucket;
+			int exponent = bucket / SUB_BUCKETS - 1;
+			long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+			return ((mantissa + 1) << exponent) - 1;
+		}
+
+		void record(long nanos) {
+			counts.incrementAndGet(bucket(nanos));
+		}
+
+		void add(Histogram other) {
+			for (int i = 0; i < counts.length(); i++)
+				counts.addAndGet(i, other.counts.get(i));
+		}
+
+		long count() {
+			long count = 0;
+			for (int i = 0; i < counts.length(); i++)
+				count += counts.get(i);
+			return count;
+		}
+
+		long percentile(double p) {
+			long total = count();
+			if( total == 0 )
+				return 0;
+			long rank = (long) Math.ceil(total * p);
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if( seen >= rank )
+					return upperBound(i);
+			}
+			return upperBound(counts.length() - 1);
+		}
+	}
+
+	final Workload workload;
+	final FileMap<String,String> map;
+	final ZipfianGenerator zipfian;
+	final ZipfianGenerator zipfianSizes;
+
+	// swapped at each report
+	final AtomicReference<Histogram[]> interval = new AtomicReference<>(newHistograms());
+	final Histogram[] total = newHistograms();
+
+	public LoadGenerator(FileMap<String,String> map, Workload workload) {
+		workload.validate();
+		this.map = map;
+		this.workload = workload;
+		this.zipfian = "zipfian".equals(workload.distribution) ? new ZipfianGenerator(workload.keys) : null;
+		this.zipfianSizes = "zipfian".equals(workload.valueDistribution) ? new ZipfianGenerator(workload.valueMax - workload.valueMin + 1) : null;
+	}
+
+	static Histogram[] newHistograms() {
+		Histogram[] histograms = new Histogram[OPERATIONS.length];
+		for (int i = 0; i < histograms.length; i++)
+			histograms[i] = new Histogram();
+		return histograms;
+	}
+
+	String nextKey(Random random) {
+		long i = (zipfian != null) ? zipfian.next(random) : random.nextInt(workload.keys);
+		return "key-" + i;
+	}
+
+	String nextValue(Random random) {
+		int range = workload.valueMax - workload.valueMin + 1;
+		int size = workload.valueMin + (int) ((zipfianSizes != null) ? zipfianSizes.nextRank(random) : random.nextInt(range));
+		char[] chars = new char[size];
+		for (int i = 0; i < size; i++)
+			chars[i] = (char) ('a' + random.nextInt(26));
+		return new String(chars);
+	}
+
+	// consecutive keys, rather than a snapshot of the whole map which would be an O(n) copy
+	List<String> nextRange(Random random) {
+		int first = random.nextInt(Math.max(1, workload.keys - workload.scanLength + 1));
+		List<String> keys = new ArrayList<>(workload.scanLength);
+		for (int i = first; i < first + workload.scanLength && i < workload.keys; i++)
+			keys.add("key-" + i);
+		return keys;
+	}
+
+	public void load() {
+		Random random = new Random();
+		long t = System.currentTimeMillis();
+		for (int i = 0; i < workload.keys; i++)
+			map.put("key-" + i, nextValue(random));
+		System.out.println("Loaded " + workload.keys + " entries in " + (System.currentTimeMillis() - t) + " ms");
+	}
+
+	void execute(int operation, Random random) {
+		switch( operation ) {
+			case READ:
+				map.get(nextKey(random));
+				break;
+			case WRITE:
+				map.put(nextKey(random), nextValue(random));
+				break;
+			case REMOVE:
+				map.remove(nextKey(random));
+				break;
+			case SCAN:
+				List<String> keys = nextRange(random);
+				if( map instanceof IndexedFileMap )
+					((IndexedFileMap<String,String>) map).getAll(keys);
+				else
+					for( String key : keys )
+						map.get(key);
+				break;
+		}
+	}
+
+	public void run() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + workload.duration * 1000L;
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < workload.threads; t++) {
+			Thread thread = new Thread(() -> {
+				Random random = ThreadLocalRandom.current();
+				while( System.currentTimeMillis() < deadline ) {
+					int operation = workload.nextOperation(random);
+					long start = System.nanoTime();
+					execute(operation, random);
+					interval.get()[operation].record(System.nanoTime() - start);
+				}
+			}, "load-generator-" + t);
+			thread.start();
+			threads.add(thread);
+		}
+
+		System.out.println(String.format("%6s %10s %-26s %-26s %-26s %-26s %10s %6s", "time", "ops/s", "read p50/p99/p999 (us)", "write", "remove", "scan", "disk (MB)", "frag"));
+		long start = System.currentTimeMillis();
+		long last = start;
+		while( System.currentTimeMillis() < deadline ) {
+			Thread.sleep(Math.min(workload.report * 1000L, Math.max(1, deadline - System.currentTimeMillis())));
+			long now = System.currentTimeMillis();
+			Histogram[] histograms = interval.getAndSet(newHistograms());
+			report(Math.round((now - start) / 1000.0) + "s", histograms, now - last);
+			for (int i = 0; i < histograms.length; i++)
+				total[i].add(histograms[i]);
+			last = now;
+		}
+		for( Thread thread : threads )
+			thread.join();
+		// operations which completed after the last report
+		Histogram[] histograms = interval.getAndSet(newHistograms());
+		for (int i = 0; i < histograms.length; i++)
+			total[i].add(histograms[i]);
+
+		report("total", total, System.currentTimeMillis() - start);
+	}
+
+	void report(String label, Histogram[] histograms, long millis) {
+		long ops = 0;
+		StringBuilder latencies = new StringBuilder();
+		for( Histogram h : histograms ) {
+			ops += h.count();
+			latencies.append(String.format("%-26s ", h.count() == 0 ? "-" :
+				h.percentile(0.5) / 1000 + "/" + h.percentile(0.99) / 1000 + "/" + h.percentile(0.999) / 1000));
+		}
+		double disk;
+		try {
+			disk = map.diskSize() / 1000.0 / 1000.0;
+		}
+		catch(IOException e) {
+			disk = -1;
+		}
+		System.out.println(String.format("%6s %10d %s%10.1f %6.2f", label, ops * 1000 / Math.max(1, millis), latencies, disk, map.getFragmentation()));
+	}
+
+	@SuppressWarnings("unchecked")
+	static FileMap<String,String> open(String type, File file) throws Exception {
+		if( "cached".equals(type) )
+			return new CachedFileMap<>(file, String.class, String.class);
+		if( "indexed".equals(type) )
+			return new IndexedFileMap<>(file, String.class, String.class);
+		Constructor<?> constructor = Class.forName(type).getConstructor(File.class, Class.class, Class.class);
+		return (FileMap<String,String>) constructor.newInstance(file, String.class, String.class);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Workload workload = Workload.parse(args);
+		// before the file is deleted
+		workload.validate();
+		File file = new File(workload.file);
+		if( file.exists() )
+			file.delete();
+
+		FileMap<String,String> map = open(workload.map, file);
+		System.out.println("Workload: " + AbstractFileMap.mapper.writeValueAsString(workload));
+
+		LoadGenerator generator = new LoadGenerator(map, workload);
+		generator.load();
+		generator.run();
+		map.close();
+	}
+}
@@ -0,0 +1,97 @@
+package com.github.dagnelies.filemap;
+
+import static com.github.dagnelies.filemap.TestFiles.newFile;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class LoadGeneratorTest {
+
+	@Test
+	public void testHistogram() {
+		LoadGenerator.Histogram histogram = new LoadGenerator.Histogram();
+		for (int i = 1; i <= 10000; i++)
+			histogram.record(i * 1000L);
+		
+		assertEquals(10000, histogram.count());
+		assertEquals(5000 * 1000, histogram.percentile(0.5), 5000 * 1000 * 0.04);
+		assertEquals(9900 * 1000, histogram.percentile(0.99), 9900 * 1000 * 0.04);
+		assertEquals(9990 * 1000, histogram.percentile(0.999), 9990 * 1000 * 0.04);
+		
+		// each bucket's bounds are consistent
+		for (long nanos = 0; nanos < 100000; nanos += 7)
+			assertTrue(LoadGenerator.Histogram.upperBound(LoadGenerator.Histogram.bucket(nanos)) >= nanos);
+	}
+	
+	@Test
+	public void testZipfian() {
+		LoadGenerator.ZipfianGenerator zipfian = new LoadGenerator.ZipfianGenerator(1000);
+		Random random = new Random(42);
+		int[] counts = new int[1000];
+		for (int i = 0; i < 100000; i++)
+			counts[(int) zipfian.next(random)]++;
+		
+		// the most popular key gets a large share of the requests
+		int max = 0;
+		for( int count : counts )
+			max = Math.max(max, count);
+		assertTrue(max > 10000);
+	}
+	
+	@Test
+	public void testWorkload() {
+		LoadGenerator.Workload workload = LoadGenerator.Workload.parse(new String[] {"keys=1000", "scanLength=10", "valueMin=10", "valueMax=5"});
+		assertThrows(IllegalArgumentException.class, () -> workload.validate());
+		
+		// scans read a range of existing keys
+		workload.valueMax = 20;
+		LoadGenerator generator = new LoadGenerator(null, workload);
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			List<String> keys = generator.nextRange(random);
+			assertEquals(10, keys.size());
+			int first = Integer.parseInt(keys.get(0).substring("key-".length()));
+			assertTrue(first >= 0 && first + 10 <= 1000);
+		}
+	}
+	
+	@Test
+	public void testValueSizes() {
+		LoadGenerator.Workload workload = LoadGenerator.Workload.parse(new String[] {"valueMin=10", "valueMax=1000", "valueDistribution=zipfian"});
+		LoadGenerator generator = new LoadGenerator(null, workload);
+		Random random = new Random(42);
+		int small = 0;
+		for (int i = 0; i < 1000; i++) {
+			int size = generator.nextValue(random).length();
+			assertTrue(size >= 10 && size <= 1000);
+			if( size < 100 )
+				small++;
+		}
+		// mostly small values, unlike with a uniform distribution
+		assertTrue(small > 500);
+		
+		workload.valueDistribution = "normal";
+		assertThrows(IllegalArgumentException.class, () -> workload.validate());
+	}
+	
+	@Test
+	public void testSmokeRun() throws Exception {
+		for( String type : new String[] {"cached", "indexed"} ) {
+			File file = newFile("load-generator-" + type + ".jkv");
+			LoadGenerator.Workload workload = LoadGenerator.Workload.parse(new String[] {"duration=1", "report=1", "keys=100", "threads=2"});
+			FileMap<String,String> map = LoadGenerator.open(type, file);
+			LoadGenerator generator = new LoadGenerator(map, workload);
+			generator.load();
+			generator.run();
+			// each kind of operation ran
+			assertTrue(map.size() <= 100);
+			for( LoadGenerator.Histogram histogram : generator.total )
+				assertTrue(histogram.count() > 0);
+			map.close();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.github.dagnelies.filemap;
+
+import java.io.File;
+
+/**
+ * Fixtures shared by the tests.
+ */
+class TestFiles {
+
+	/**
+	 * Returns the file of that name in the temp directory, deleted if it exists so that each test starts from scratch.
+	 */
+	static File newFile(String name) {
+		File file = new File("temp/" + name);
+		if( file.exists() )
+			file.delete();
+		return file;
+	}
+}
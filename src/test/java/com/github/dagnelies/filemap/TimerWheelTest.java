@@ -0,0 +1,30 @@
+package com.github.dagnelies.filemap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+
+	@Test
+	public void test() {
+		TimerWheel<String> wheel = new TimerWheel<>(10, 8, 1000);
+		wheel.schedule("a", 1015);
+		wheel.schedule("b", 1035);
+		wheel.schedule("c", 1500); // several rounds later
+		
+		assertEquals(Collections.emptyList(), wheel.advance(1015));
+		assertEquals(Arrays.asList("a"), wheel.advance(1020));
+		assertEquals(Collections.emptyList(), wheel.advance(1039));
+		assertEquals(Arrays.asList("b"), wheel.advance(1040));
+		assertEquals(Collections.emptyList(), wheel.advance(1200));
+		assertEquals(Arrays.asList("c"), wheel.advance(2000));
+		
+		// deadlines in the past are returned on the next tick
+		wheel.schedule("d", 1000);
+		assertEquals(Arrays.asList("d"), wheel.advance(2010));
+	}
+}